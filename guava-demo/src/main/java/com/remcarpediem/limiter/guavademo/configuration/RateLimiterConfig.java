@@ -1,14 +1,264 @@
 package com.remcarpediem.limiter.guavademo.configuration;
 
-import com.google.common.util.concurrent.RateLimiter;
+import com.remcarpediem.limiter.guavademo.controller.HeavyHittersEndpoint;
+import com.remcarpediem.limiter.guavademo.redis.HeavyHitters;
+import com.remcarpediem.limiter.guavademo.redis.HeavyHittersAggregator;
+import com.remcarpediem.limiter.guavademo.redis.HeavyHittersTemplate;
+import com.remcarpediem.limiter.guavademo.redis.InMemoryQuotaStore;
+import com.remcarpediem.limiter.guavademo.redis.LettucePermitsStore;
+import com.remcarpediem.limiter.guavademo.redis.PermitsSnapshotFile;
+import com.remcarpediem.limiter.guavademo.redis.PermitsSnapshotter;
+import com.remcarpediem.limiter.guavademo.redis.PermitsStore;
+import com.remcarpediem.limiter.guavademo.redis.PermitsTemplate;
+import com.remcarpediem.limiter.guavademo.redis.Quota;
+import com.remcarpediem.limiter.guavademo.redis.QuotaStore;
+import com.remcarpediem.limiter.guavademo.redis.QuotaTemplate;
+import com.remcarpediem.limiter.guavademo.redis.QuotaWindow;
+import com.remcarpediem.limiter.guavademo.redis.RateDefinitionTemplate;
+import com.remcarpediem.limiter.guavademo.redis.RateLimiter;
+import com.remcarpediem.limiter.guavademo.redis.RateLimiterRegistry;
+import com.remcarpediem.limiter.guavademo.redis.TokenClient;
+import com.remcarpediem.limiter.guavademo.redis.TokenServer;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * limiter.mode 为 local 时令牌桶保存在进程内, 为 redis 时令牌桶保存在redis中并用 redisson 的分布式锁保护,
+ * 为 redis-optimistic 时令牌桶保存在redis中, 不加锁, 按版本号比较写入.
+ * limiter.store 选择读写redis的方式: template 为 {@link PermitsTemplate}, lettuce 为 {@link LettucePermitsStore}
+ */
 @Configuration
 public class RateLimiterConfig {
+    @Value("${limiter.key:demo}")
+    private String key;
+
+    @Value("${limiter.permits-per-second:1}")
+    private double permitsPerSecond;
+
+    @Value("${limiter.mode:local}")
+    private String mode;
+
+    @Value("${limiter.coalesce:false}")
+    private boolean coalesce;
+
+    @Bean
+    public RateDefinitionTemplate rateDefinitionTemplate(RedisConnectionFactory redisConnectionFactory) {
+        RateDefinitionTemplate rateDefinitionTemplate = new RateDefinitionTemplate();
+        rateDefinitionTemplate.setConnectionFactory(redisConnectionFactory);
+        return rateDefinitionTemplate;
+    }
+
+    /**
+     * redis 模式下每 limiter.rate-refresh-seconds 重新加载一次速率, 补偿断线期间丢失的广播
+     */
+    @Bean(destroyMethod = "stop")
+    public RateLimiterRegistry rateLimiterRegistry(RateDefinitionTemplate rateDefinitionTemplate,
+                                                   ObjectProvider<HeavyHitters> heavyHitters,
+                                                   @Value("${limiter.rate-refresh-seconds:30}") long refreshSeconds) {
+        RateLimiterRegistry rateLimiterRegistry = new RateLimiterRegistry(rateDefinitionTemplate);
+        heavyHitters.ifAvailable(rateLimiterRegistry::setHeavyHitters);
+        if (mode.startsWith("redis")) {
+            rateLimiterRegistry.startRefresh(refreshSeconds, TimeUnit.SECONDS);
+        }
+        return rateLimiterRegistry;
+    }
+
+    @Bean
+    @ConditionalOnExpression("'${limiter.mode:local}'.startsWith('redis') && '${limiter.heavy-hitters.enabled:true}' == 'true'")
+    public HeavyHitters heavyHitters(@Value("${limiter.heavy-hitters.width:2048}") int width,
+                                     @Value("${limiter.heavy-hitters.depth:4}") int depth,
+                                     @Value("${limiter.heavy-hitters.top-k:20}") int topK) {
+        return new HeavyHitters(width, depth, topK);
+    }
+
+    @Bean
+    @ConditionalOnExpression("'${limiter.mode:local}'.startsWith('redis') && '${limiter.heavy-hitters.enabled:true}' == 'true'")
+    public HeavyHittersTemplate heavyHittersTemplate(RedisConnectionFactory redisConnectionFactory) {
+        HeavyHittersTemplate heavyHittersTemplate = new HeavyHittersTemplate();
+        heavyHittersTemplate.setConnectionFactory(redisConnectionFactory);
+        return heavyHittersTemplate;
+    }
+
+    /**
+     * limiter.heavy-hitters.node 未配置时用 pid@hostname 区分节点
+     */
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnExpression("'${limiter.mode:local}'.startsWith('redis') && '${limiter.heavy-hitters.enabled:true}' == 'true'")
+    public HeavyHittersAggregator heavyHittersAggregator(HeavyHitters heavyHitters, HeavyHittersTemplate heavyHittersTemplate,
+                                                         @Value("${limiter.heavy-hitters.node:}") String node,
+                                                         @Value("${limiter.heavy-hitters.interval-seconds:10}") long intervalSeconds) {
+        if (node.isEmpty()) {
+            node = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        return new HeavyHittersAggregator(heavyHitters, heavyHittersTemplate, node, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Bean
+    @ConditionalOnExpression("'${limiter.mode:local}'.startsWith('redis') && '${limiter.heavy-hitters.enabled:true}' == 'true'")
+    public HeavyHittersEndpoint heavyHittersEndpoint(HeavyHittersAggregator heavyHittersAggregator) {
+        return new HeavyHittersEndpoint(heavyHittersAggregator);
+    }
+
+    @Bean
+    @ConditionalOnExpression("'${limiter.mode:local}'.startsWith('redis')")
+    public RedisMessageListenerContainer rateListenerContainer(RedisConnectionFactory redisConnectionFactory,
+                                                               RateLimiterRegistry rateLimiterRegistry) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener(rateLimiterRegistry, new ChannelTopic(RateLimiterRegistry.CHANNEL));
+        return container;
+    }
+
+    @Bean
+    @ConditionalOnExpression("'${limiter.mode:local}'.startsWith('redis') && '${limiter.store:template}' == 'template'")
+    public PermitsTemplate permitsTemplate(RedisConnectionFactory redisConnectionFactory) {
+        PermitsTemplate permitsTemplate = new PermitsTemplate();
+        permitsTemplate.setConnectionFactory(redisConnectionFactory);
+        return permitsTemplate;
+    }
+
+    /**
+     * limiter.store 为 lettuce 时令牌桶通过单个多路复用的连接读写, 命令自动合并成 pipeline
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("'${limiter.mode:local}'.startsWith('redis') && '${limiter.store:template}' == 'lettuce'")
+    public LettucePermitsStore lettucePermitsStore(RedisProperties redisProperties) {
+        RedisURI redisURI = RedisURI.create(redisProperties.getHost(), redisProperties.getPort());
+        if (redisProperties.getPassword() != null) {
+            redisURI.setPassword(redisProperties.getPassword());
+        }
+        Duration timeout = redisProperties.getTimeout() == null ? RedisURI.DEFAULT_TIMEOUT_DURATION : redisProperties.getTimeout();
+        return new LettucePermitsStore(RedisClient.create(redisURI), timeout);
+    }
+
+    @Bean
+    @ConditionalOnExpression("'${limiter.mode:local}'.startsWith('redis')")
+    public QuotaTemplate quotaTemplate(RedisConnectionFactory redisConnectionFactory) {
+        QuotaTemplate quotaTemplate = new QuotaTemplate();
+        quotaTemplate.setConnectionFactory(redisConnectionFactory);
+        return quotaTemplate;
+    }
+
+    /**
+     * 配置了 limiter.quota.limit 时创建配额, DemoService 和限流器一起通过 {@link RateLimiter#tryAcquire(int, long, TimeUnit, Quota...)} 检查,
+     * 等待令牌最多 limiter.quota.timeout-millis
+     */
+    @Bean
+    @ConditionalOnProperty(name = "limiter.quota.limit")
+    public Quota quota(ObjectProvider<QuotaStore> quotaStore,
+                       @Value("${limiter.quota.window:DAY}") QuotaWindow window,
+                       @Value("${limiter.quota.limit}") long limit,
+                       @Value("${limiter.quota.batch-size:10}") int batchSize) {
+        return new Quota(key, window, limit, quotaStore.getIfAvailable(InMemoryQuotaStore::new), batchSize);
+    }
+
+    /**
+     * 配置了 limiter.token-server.port 时当前进程作为令牌服务, 令牌桶只保存在内存中.
+     * redis 模式下服务端用单独的注册中心订阅速率广播, 和本节点的限流器互不影响
+     */
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnProperty(name = "limiter.token-server.port")
+    public TokenServer tokenServer(@Value("${limiter.token-server.port}") int port,
+                                   ObjectProvider<RedisMessageListenerContainer> rateListenerContainer,
+                                   RateDefinitionTemplate rateDefinitionTemplate,
+                                   @Value("${limiter.rate-refresh-seconds:30}") long refreshSeconds) {
+        TokenServer tokenServer = new TokenServer(new InetSocketAddress(port), permitsPerSecond);
+        rateListenerContainer.ifAvailable(container -> {
+            RateLimiterRegistry rateLimiterRegistry = new RateLimiterRegistry(rateDefinitionTemplate);
+            container.addMessageListener(rateLimiterRegistry, new ChannelTopic(RateLimiterRegistry.CHANNEL));
+            rateLimiterRegistry.startRefresh(refreshSeconds, TimeUnit.SECONDS);
+            tokenServer.setRateLimiterRegistry(rateLimiterRegistry);
+        });
+        return tokenServer;
+    }
+
+    /**
+     * 配置了 limiter.token-server.address (host:port) 时限流器通过令牌服务限流, 服务不可用时按 limiter.token-server.fallback 处理
+     */
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnProperty(name = "limiter.token-server.address")
+    public TokenClient tokenClient(@Value("${limiter.token-server.address}") String address,
+                                   @Value("${limiter.token-server.fallback:LOCAL}") TokenClient.FallbackPolicy fallback,
+                                   @Value("${limiter.token-server.fallback-permits-per-second:${limiter.permits-per-second:1}}") double fallbackPermitsPerSecond,
+                                   @Value("${limiter.token-server.timeout-millis:50}") long timeoutMillis) {
+        int separator = address.lastIndexOf(':');
+        InetSocketAddress serverAddress = new InetSocketAddress(address.substring(0, separator),
+                Integer.parseInt(address.substring(separator + 1)));
+        return new TokenClient(serverAddress, fallback, fallbackPermitsPerSecond, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty(name = "limiter.mode", havingValue = "redis")
+    public RedissonClient redissonClient(RedisProperties redisProperties) {
+        Config config = new Config();
+        config.useSingleServer()
+                .setAddress(redisProperties.getHost() + ":" + redisProperties.getPort())
+                .setPassword(redisProperties.getPassword());
+        return Redisson.create(config);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "limiter.mode", havingValue = "redis")
+    public Lock rateLimiterLock(RedissonClient redissonClient) {
+        return redissonClient.getLock("rate-limiter:lock:" + key);
+    }
+
+    /**
+     * 默认关闭. 快照文件名包含 key 和端口, 同一台机器上的多个实例不会互相覆盖
+     */
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnProperty(name = "limiter.snapshot.enabled", havingValue = "true")
+    public PermitsSnapshotter permitsSnapshotter(RateLimiterRegistry rateLimiterRegistry,
+                                                 @Value("${limiter.snapshot.path:${java.io.tmpdir}/rate-limiter-${limiter.key:demo}-${server.port:8080}.snapshot}") String path,
+                                                 @Value("${limiter.snapshot.capacity:65536}") int capacity,
+                                                 @Value("${limiter.snapshot.interval-seconds:5}") long intervalSeconds) throws IOException {
+        return new PermitsSnapshotter(rateLimiterRegistry, new PermitsSnapshotFile(Paths.get(path), capacity),
+                intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 创建限流器之前先从快照恢复令牌桶. 配置了令牌服务时 acquire 和 tryAcquire 交给令牌服务判断
+     */
     @Bean
-    public RateLimiter rateLimiter() {
-        RateLimiter rateLimiter = RateLimiter.create(1);
+    public RateLimiter rateLimiter(RateLimiterRegistry rateLimiterRegistry,
+                                   ObjectProvider<PermitsStore> permitsStore,
+                                   ObjectProvider<Lock> rateLimiterLock,
+                                   ObjectProvider<PermitsSnapshotter> permitsSnapshotter,
+                                   ObjectProvider<TokenClient> tokenClient) {
+        PermitsStore store = permitsStore.getIfAvailable();
+        permitsSnapshotter.ifAvailable(snapshotter ->
+                snapshotter.restore(store == null ? rateLimiterRegistry.getLocalPermitsStore() : store));
+        RateLimiter rateLimiter;
+        if (store == null) {
+            rateLimiter = rateLimiterRegistry.create(key, permitsPerSecond);
+        } else {
+            Lock lock = "redis-optimistic".equals(mode) ? null : rateLimiterLock.getIfAvailable(ReentrantLock::new);
+            rateLimiter = rateLimiterRegistry.create(key, permitsPerSecond, store, lock);
+        }
+        rateLimiter.setCoalescing(coalesce);
+        tokenClient.ifAvailable(rateLimiter::setTokenClient);
         return rateLimiter;
     }
 }
@@ -1,8 +1,12 @@
 package com.remcarpediem.limiter.guavademo.controller;
 
+import com.remcarpediem.limiter.guavademo.redis.RateLimitExceededException;
 import com.remcarpediem.limiter.guavademo.service.DemoService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
 @RestController
@@ -14,4 +18,10 @@ public class DemoController {
     public Long getId() {
         return demoService.getId();
     }
+
+    @ExceptionHandler(RateLimitExceededException.class)
+    @ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+    public String rateLimitExceeded(RateLimitExceededException e) {
+        return e.getMessage();
+    }
 }
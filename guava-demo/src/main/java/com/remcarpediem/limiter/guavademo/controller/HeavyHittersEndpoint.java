@@ -0,0 +1,32 @@
+package com.remcarpediem.limiter.guavademo.controller;
+
+import com.remcarpediem.limiter.guavademo.redis.HeavyHitter;
+import com.remcarpediem.limiter.guavademo.redis.HeavyHitters;
+import com.remcarpediem.limiter.guavademo.redis.HeavyHittersAggregator;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * /actuator/heavyhitters, 所有节点合并后拿到令牌和被拒绝最多的 key
+ */
+@Endpoint(id = "heavyhitters")
+public class HeavyHittersEndpoint {
+    private final HeavyHittersAggregator heavyHittersAggregator;
+
+    public HeavyHittersEndpoint(HeavyHittersAggregator heavyHittersAggregator) {
+        this.heavyHittersAggregator = heavyHittersAggregator;
+    }
+
+    @ReadOperation
+    public Map<String, List<HeavyHitter>> heavyHitters() {
+        HeavyHitters merged = heavyHittersAggregator.merged();
+        Map<String, List<HeavyHitter>> result = new LinkedHashMap<>();
+        result.put("consumers", merged.topConsumers());
+        result.put("rejected", merged.topRejected());
+        return result;
+    }
+}
@@ -0,0 +1,19 @@
+package com.remcarpediem.limiter.guavademo.controller;
+
+import com.remcarpediem.limiter.guavademo.redis.RateLimiterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class LimitController {
+    @Autowired
+    private RateLimiterRegistry rateLimiterRegistry;
+
+    @PutMapping("/limits/{key}")
+    public Long setRate(@PathVariable String key, @RequestParam double permitsPerSecond) {
+        return rateLimiterRegistry.publish(key, permitsPerSecond);
+    }
+}
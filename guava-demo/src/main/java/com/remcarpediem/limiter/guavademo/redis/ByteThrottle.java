@@ -0,0 +1,41 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 每个字节一个令牌. 每次至少按当前速率 100ms 的字节数向限流器预定, 用不完的留给后面的读写,
+ * 单字节的读写也不会每次都访问令牌桶. {@link #release()} 时把没用完的令牌退回. 不是线程安全的, 和流一样由一个线程使用
+ */
+final class ByteThrottle {
+    private static final double CHUNK_SECONDS = 0.1;
+
+    private final RateLimiter rateLimiter;
+    private long prepaid;
+
+    ByteThrottle(RateLimiter rateLimiter) {
+        this.rateLimiter = checkNotNull(rateLimiter);
+    }
+
+    /**
+     * 当前速率下一次预定的字节数
+     */
+    int chunkSize() {
+        return (int) Math.max(1.0, Math.min(Integer.MAX_VALUE, rateLimiter.getRate() * CHUNK_SECONDS));
+    }
+
+    void acquire(long bytes) {
+        while (bytes > prepaid) {
+            int chunk = (int) Math.max(Math.min(bytes - prepaid, Integer.MAX_VALUE), chunkSize());
+            rateLimiter.stopwatch.sleepMicrosUninterruptibly(rateLimiter.getKey(), rateLimiter.reserve(chunk));
+            prepaid += chunk;
+        }
+        prepaid -= bytes;
+    }
+
+    void release() {
+        if (prepaid > 0) {
+            rateLimiter.settle((int) -prepaid);
+            prepaid = 0;
+        }
+    }
+}
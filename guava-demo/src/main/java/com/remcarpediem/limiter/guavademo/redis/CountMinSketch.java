@@ -0,0 +1,89 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Count-Min sketch, 内存固定为 width * depth 个计数器, 估计值只会偏大不会偏小.
+ * 计数器是 {@link AtomicLongArray}, 并发写入不加锁. 宽度和深度相同的 sketch 可以逐个计数器相加合并
+ */
+public final class CountMinSketch {
+    private final int width;
+    private final int depth;
+    private final AtomicLongArray counters;
+
+    public CountMinSketch(int width, int depth) {
+        checkArgument(width > 0 && depth > 0, "width (%s) and depth (%s) must be positive", width, depth);
+        this.width = width;
+        this.depth = depth;
+        this.counters = new AtomicLongArray(width * depth);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * 累加后返回新的估计值
+     */
+    public long addAndEstimate(String key, long count) {
+        long hash = Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.addAndGet(index(hash, row), count));
+        }
+        return estimate;
+    }
+
+    public long estimate(String key) {
+        long hash = Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.get(index(hash, row)));
+        }
+        return estimate;
+    }
+
+    /**
+     * 所有计数器减半, 旧的计数按时间指数衰减
+     */
+    public void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.getAndUpdate(i, count -> count >> 1);
+        }
+    }
+
+    public long[] toArray() {
+        long[] values = new long[counters.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counters.get(i);
+        }
+        return values;
+    }
+
+    public void merge(long[] values) {
+        checkArgument(values.length == counters.length(), "sketch size mismatch: %s != %s", values.length, counters.length());
+        for (int i = 0; i < values.length; i++) {
+            counters.addAndGet(i, values[i]);
+        }
+    }
+
+    /**
+     * 用一个 64 位哈希的高低两半组合出每一行的下标
+     */
+    private int index(long hash, int row) {
+        int combined = (int) hash + row * (int) (hash >>> 32);
+        if (combined < 0) {
+            combined = ~combined;
+        }
+        return row * width + combined % width;
+    }
+}
@@ -0,0 +1,23 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.Map;
+
+/**
+ * 各区域交换需求和份额分配的地方, 只在重新分配时访问, 不在 acquire 的路径上
+ */
+public interface DemandExchange {
+
+    void publishDemand(String region, double permitsPerSecond);
+
+    Map<String, Double> demands();
+
+    /**
+     * 最新的分配, 还没有分配时返回 null
+     */
+    RegionAllocation allocation();
+
+    /**
+     * 当前分配的版本号为 expectedVersion 时才写入, 没有分配时版本号视为 0, 保证每个版本只有一个区域写入
+     */
+    boolean compareAndSetAllocation(long expectedVersion, RegionAllocation allocation);
+}
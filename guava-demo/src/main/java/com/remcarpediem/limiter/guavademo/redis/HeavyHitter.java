@@ -0,0 +1,39 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+/**
+ * 一个限流 key 的估计用量, 经过时间衰减
+ */
+public class HeavyHitter {
+    private final String key;
+    private final long permits;
+    private final long rejections;
+
+    public HeavyHitter(String key, long permits, long rejections) {
+        this.key = key;
+        this.permits = permits;
+        this.rejections = rejections;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 拿到的令牌数
+     */
+    public long getPermits() {
+        return permits;
+    }
+
+    /**
+     * 被拒绝的令牌数
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    @Override
+    public String toString() {
+        return "HeavyHitter{key='" + key + "', permits=" + permits + ", rejections=" + rejections + '}';
+    }
+}
@@ -0,0 +1,197 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 统计拿到令牌和被拒绝最多的 key. 用量记在两个 {@link CountMinSketch} 中, 每个维度另外保留有限个候选 key,
+ * 内存和 key 的数量无关. 记录时不加锁, 估计值不低于上次 {@link #decay()} 时第 topK 名的 key 才成为候选,
+ * 候选已满时随机查看 {@link #REPLACE_SAMPLES} 个候选, 用 CAS 替换其中估计值最小且比新 key 小的一个, 不扫描全部候选.
+ * 并发替换时候选集合是近似的, decay 时计数减半, 用小顶堆选出前 topK 名重建候选, 其余候选被淘汰
+ */
+public class HeavyHitters {
+    static final int REPLACE_SAMPLES = 4;
+
+    private final int topK;
+    private final int maxCandidates;
+    private final Dimension permits;
+    private final Dimension rejections;
+
+    public HeavyHitters(int width, int depth, int topK) {
+        checkArgument(topK > 0, "topK (%s) must be positive", topK);
+        this.topK = topK;
+        this.maxCandidates = topK * 4;
+        this.permits = new Dimension(new CountMinSketch(width, depth));
+        this.rejections = new Dimension(new CountMinSketch(width, depth));
+    }
+
+    public void recordAcquired(String key, long permitCount) {
+        permits.record(key, permitCount);
+    }
+
+    public void recordRejected(String key, long permitCount) {
+        rejections.record(key, permitCount);
+    }
+
+    /**
+     * 计数减半并淘汰不在前 topK 名的候选
+     */
+    public synchronized void decay() {
+        permits.decay(HeavyHitter::getPermits);
+        rejections.decay(HeavyHitter::getRejections);
+    }
+
+    /**
+     * 拿到令牌最多的 key, 从多到少
+     */
+    public List<HeavyHitter> topConsumers() {
+        return top(permits.candidates, HeavyHitter::getPermits);
+    }
+
+    /**
+     * 被拒绝最多的 key, 从多到少
+     */
+    public List<HeavyHitter> topRejected() {
+        return top(rejections.candidates, HeavyHitter::getRejections);
+    }
+
+    private List<HeavyHitter> top(Set<String> candidates, ToLongFunction<HeavyHitter> count) {
+        Comparator<HeavyHitter> order = Comparator.comparingLong(count);
+        PriorityQueue<HeavyHitter> heap = new PriorityQueue<>(topK, order);
+        for (String key : candidates) {
+            HeavyHitter hitter = new HeavyHitter(key, permits.sketch.estimate(key), rejections.sketch.estimate(key));
+            if (count.applyAsLong(hitter) <= 0) {
+                continue;
+            }
+            if (heap.size() < topK) {
+                heap.add(hitter);
+            } else if (order.compare(hitter, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(hitter);
+            }
+        }
+        List<HeavyHitter> top = new ArrayList<>(heap);
+        top.sort(Collections.reverseOrder(order));
+        return top;
+    }
+
+    public HeavyHittersSnapshot snapshot(String node) {
+        HeavyHittersSnapshot snapshot = new HeavyHittersSnapshot();
+        snapshot.setNode(node);
+        snapshot.setTimestampMillis(System.currentTimeMillis());
+        snapshot.setWidth(permits.sketch.getWidth());
+        snapshot.setDepth(permits.sketch.getDepth());
+        snapshot.setPermits(permits.sketch.toArray());
+        snapshot.setRejections(rejections.sketch.toArray());
+        Set<String> candidates = new LinkedHashSet<>(permits.candidates);
+        candidates.addAll(rejections.candidates);
+        snapshot.setCandidates(new ArrayList<>(candidates));
+        return snapshot;
+    }
+
+    /**
+     * 合并另一个节点的统计, 候选 key 取并集, 不受候选数量限制
+     */
+    public void merge(HeavyHittersSnapshot snapshot) {
+        permits.sketch.merge(snapshot.getPermits());
+        rejections.sketch.merge(snapshot.getRejections());
+        permits.candidates.addAll(snapshot.getCandidates());
+        rejections.candidates.addAll(snapshot.getCandidates());
+    }
+
+    /**
+     * 大小相同的空统计, 用于合并各节点的统计
+     */
+    public HeavyHitters emptyCopy() {
+        return new HeavyHitters(permits.sketch.getWidth(), permits.sketch.getDepth(), topK);
+    }
+
+    public boolean isCompatible(HeavyHittersSnapshot snapshot) {
+        return snapshot.getWidth() == permits.sketch.getWidth() && snapshot.getDepth() == permits.sketch.getDepth();
+    }
+
+    /**
+     * 一个维度的计数和候选 key. 候选同时保存在固定大小的 slots 中, 用于随机抽样和 CAS 替换
+     */
+    private final class Dimension {
+        final CountMinSketch sketch;
+        final Set<String> candidates = ConcurrentHashMap.newKeySet();
+        final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(maxCandidates);
+        final AtomicInteger filled = new AtomicInteger();
+        volatile long threshold;
+
+        Dimension(CountMinSketch sketch) {
+            this.sketch = sketch;
+        }
+
+        void record(String key, long count) {
+            long estimate = sketch.addAndEstimate(key, count);
+            if (estimate < threshold || candidates.contains(key)) {
+                return;
+            }
+            int slot;
+            if (filled.get() < maxCandidates && (slot = filled.getAndIncrement()) < maxCandidates) {
+                slots.set(slot, key);
+                candidates.add(key);
+            } else {
+                replaceSmaller(key, estimate);
+            }
+        }
+
+        /**
+         * 候选已满时在抽到的候选中替换估计值最小的一个, 抽到的候选都不比新 key 小时不替换.
+         * 其他线程先替换了同一个位置时放弃, 下次记录时再尝试
+         */
+        void replaceSmaller(String key, long estimate) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int victim = -1;
+            String smallest = null;
+            long min = estimate;
+            for (int i = 0; i < REPLACE_SAMPLES; i++) {
+                int slot = random.nextInt(maxCandidates);
+                String candidate = slots.get(slot);
+                long candidateEstimate = candidate == null ? 0L : sketch.estimate(candidate);
+                if (candidateEstimate < min) {
+                    victim = slot;
+                    smallest = candidate;
+                    min = candidateEstimate;
+                }
+            }
+            if (victim >= 0 && slots.compareAndSet(victim, smallest, key)) {
+                candidates.add(key);
+                if (smallest != null) {
+                    candidates.remove(smallest);
+                }
+            }
+        }
+
+        /**
+         * 只在 {@link HeavyHitters#decay()} 中调用, 按前 topK 名重建候选
+         */
+        void decay(ToLongFunction<HeavyHitter> count) {
+            sketch.decay();
+            List<HeavyHitter> top = top(candidates, count);
+            Set<String> retained = new HashSet<>();
+            top.forEach(hitter -> retained.add(hitter.getKey()));
+            candidates.retainAll(retained);
+            for (int i = 0; i < maxCandidates; i++) {
+                slots.set(i, i < top.size() ? top.get(i).getKey() : null);
+            }
+            filled.set(top.size());
+            threshold = top.size() < topK ? 0L : count.applyAsLong(top.get(top.size() - 1));
+        }
+    }
+}
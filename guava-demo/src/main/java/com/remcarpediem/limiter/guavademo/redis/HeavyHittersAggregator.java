@@ -0,0 +1,108 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.HashOperations;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定期衰减本节点的 {@link HeavyHitters}, 并写入redis的 hash 中, 每个节点一个字段.
+ * 查询时合并所有节点最近写入的统计, 超过三个周期没有更新的节点视为已下线并删除
+ */
+public class HeavyHittersAggregator {
+    public static final String KEY = "rate-limiter:heavy-hitters";
+
+    private Logger logger = LoggerFactory.getLogger(HeavyHittersAggregator.class.getName());
+
+    private final HeavyHitters heavyHitters;
+    private final HeavyHittersTemplate heavyHittersTemplate;
+    private final String node;
+    private final long intervalMillis;
+    private ScheduledExecutorService scheduler;
+
+    public HeavyHittersAggregator(HeavyHitters heavyHitters, HeavyHittersTemplate heavyHittersTemplate, String node,
+                                  long interval, TimeUnit unit) {
+        this.heavyHitters = heavyHitters;
+        this.heavyHittersTemplate = heavyHittersTemplate;
+        this.node = node;
+        this.intervalMillis = unit.toMillis(interval);
+    }
+
+    public synchronized void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("heavy-hitters-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * redis不可用时只保留本地统计
+     */
+    public void publish() {
+        heavyHitters.decay();
+        try {
+            hashOperations().put(KEY, node, heavyHitters.snapshot(node));
+            heavyHittersTemplate.expire(KEY, 3 * intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (DataAccessException e) {
+            logger.warn("publish heavy hitters failed", e);
+        }
+    }
+
+    /**
+     * 所有节点合并后的统计, 本节点使用内存中最新的统计
+     */
+    public HeavyHitters merged() {
+        HeavyHitters merged = heavyHitters.emptyCopy();
+        merged.merge(heavyHitters.snapshot(node));
+        Map<String, HeavyHittersSnapshot> snapshots;
+        try {
+            snapshots = hashOperations().entries(KEY);
+        } catch (DataAccessException e) {
+            logger.warn("load heavy hitters failed, use local only", e);
+            snapshots = Collections.emptyMap();
+        }
+        long staleBefore = System.currentTimeMillis() - 3 * intervalMillis;
+        for (Map.Entry<String, HeavyHittersSnapshot> entry : snapshots.entrySet()) {
+            HeavyHittersSnapshot snapshot = entry.getValue();
+            if (node.equals(entry.getKey()) || snapshot == null) {
+                continue;
+            }
+            if (snapshot.getTimestampMillis() < staleBefore) {
+                deleteStale(entry.getKey());
+            } else if (merged.isCompatible(snapshot)) {
+                merged.merge(snapshot);
+            } else {
+                logger.warn("ignore heavy hitters of {} with different sketch size", entry.getKey());
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 删除失败时下次查询再删, 不影响本次合并
+     */
+    private void deleteStale(String staleNode) {
+        try {
+            hashOperations().delete(KEY, staleNode);
+        } catch (DataAccessException e) {
+            logger.warn("delete stale heavy hitters of {} failed", staleNode, e);
+        }
+    }
+
+    private HashOperations<String, String, HeavyHittersSnapshot> hashOperations() {
+        return heavyHittersTemplate.opsForHash();
+    }
+}
@@ -0,0 +1,75 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.List;
+
+/**
+ * 一个节点的 {@link HeavyHitters}, 写入redis后由各节点合并
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HeavyHittersSnapshot {
+    private String node;
+    private long timestampMillis;
+    private int width;
+    private int depth;
+    private long[] permits;
+    private long[] rejections;
+    private List<String> candidates;
+
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public void setTimestampMillis(long timestampMillis) {
+        this.timestampMillis = timestampMillis;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public long[] getPermits() {
+        return permits;
+    }
+
+    public void setPermits(long[] permits) {
+        this.permits = permits;
+    }
+
+    public long[] getRejections() {
+        return rejections;
+    }
+
+    public void setRejections(long[] rejections) {
+        this.rejections = rejections;
+    }
+
+    public List<String> getCandidates() {
+        return candidates;
+    }
+
+    public void setCandidates(List<String> candidates) {
+        this.candidates = candidates;
+    }
+}
@@ -0,0 +1,14 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+public class HeavyHittersTemplate extends RedisTemplate<String, HeavyHittersSnapshot> {
+
+    public HeavyHittersTemplate() {
+        setKeySerializer(new StringRedisSerializer());
+        setHashKeySerializer(new StringRedisSerializer());
+        setHashValueSerializer(new Jackson2JsonRedisSerializer<>(HeavyHittersSnapshot.class));
+    }
+}
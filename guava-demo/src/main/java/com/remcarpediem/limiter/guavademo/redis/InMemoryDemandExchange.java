@@ -0,0 +1,39 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 进程内的需求交换, 用于在一个进程中模拟多个区域
+ */
+public class InMemoryDemandExchange implements DemandExchange {
+    private final ConcurrentMap<String, Double> demands = new ConcurrentHashMap<>();
+    private RegionAllocation allocation;
+
+    @Override
+    public void publishDemand(String region, double permitsPerSecond) {
+        demands.put(region, permitsPerSecond);
+    }
+
+    @Override
+    public Map<String, Double> demands() {
+        return new HashMap<>(demands);
+    }
+
+    @Override
+    public synchronized RegionAllocation allocation() {
+        return allocation;
+    }
+
+    @Override
+    public synchronized boolean compareAndSetAllocation(long expectedVersion, RegionAllocation allocation) {
+        long currentVersion = this.allocation == null ? 0L : this.allocation.getVersion();
+        if (currentVersion != expectedVersion) {
+            return false;
+        }
+        this.allocation = allocation;
+        return true;
+    }
+}
@@ -0,0 +1,32 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 进程内的令牌桶存储, 令牌桶只在当前节点生效
+ */
+public class InMemoryPermitsStore implements PermitsStore {
+    private final ConcurrentMap<String, RedisPermits> permits = new ConcurrentHashMap<>();
+
+    /**
+     * 存取的都是副本, 调用方修改令牌桶不会影响存储的内容
+     */
+    @Override
+    public RedisPermits get(String key) {
+        RedisPermits stored = permits.get(key);
+        return stored == null ? null : new RedisPermits(stored);
+    }
+
+    @Override
+    public void set(String key, RedisPermits redisPermits, long expiresSeconds) {
+        permits.put(key, new RedisPermits(redisPermits));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, RedisPermits redisPermits, long expiresSeconds) {
+        RedisPermits update = new RedisPermits(redisPermits);
+        return permits.compute(key, (k, stored) ->
+                (stored == null ? 0L : stored.getVersion()) == expectedVersion ? update : stored) == update;
+    }
+}
@@ -0,0 +1,42 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的配额计数器, 新窗口的计数器创建时清理已经过期的计数器
+ */
+public class InMemoryQuotaStore implements QuotaStore {
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Ticker ticker;
+
+    public InMemoryQuotaStore() {
+        this(Quota.WALL_CLOCK);
+    }
+
+    public InMemoryQuotaStore(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    @Override
+    public long incrementBy(String key, long delta, long expireAtMillis) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            long nowMillis = TimeUnit.NANOSECONDS.toMillis(ticker.read());
+            counters.values().removeIf(expired -> expired.expireAtMillis <= nowMillis);
+            counter = counters.computeIfAbsent(key, k -> new Counter(expireAtMillis));
+        }
+        return counter.value.addAndGet(delta);
+    }
+
+    private static final class Counter {
+        private final long expireAtMillis;
+        private final AtomicLong value = new AtomicLong();
+
+        Counter(long expireAtMillis) {
+            this.expireAtMillis = expireAtMillis;
+        }
+    }
+}
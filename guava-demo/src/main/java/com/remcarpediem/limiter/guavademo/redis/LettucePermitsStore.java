@@ -0,0 +1,145 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于 lettuce 的令牌桶存储. 所有限流器共用一个多路复用的连接, 关闭自动 flush,
+ * 并发发出的命令由单独的线程一次 flush, 多个 key 的命令自然合并成一个 pipeline,
+ * 不需要为每次读写占用连接池中的一个连接. 数据格式和 {@link PermitsTemplate} 一致.
+ */
+public class LettucePermitsStore implements PermitsStore, Closeable {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final RedisClient redisClient;
+    private final StatefulRedisConnection<String, String> connection;
+    private final RedisAsyncCommands<String, String> commands;
+    private final Duration timeout;
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("permits-flusher-%d").setDaemon(true).build());
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final String compareAndSetScript;
+    private final String compareAndSetSha;
+    private final String acquireUpToScript;
+    private final String acquireUpToSha;
+
+    public LettucePermitsStore(RedisClient redisClient, Duration timeout) {
+        this.redisClient = redisClient;
+        this.timeout = timeout;
+        this.connection = redisClient.connect();
+        this.connection.setAutoFlushCommands(false);
+        this.commands = connection.async();
+        this.compareAndSetScript = script("scripts/compare_and_set_permits.lua");
+        this.compareAndSetSha = sha1(compareAndSetScript);
+        this.acquireUpToScript = script("scripts/acquire_up_to.lua");
+        this.acquireUpToSha = sha1(acquireUpToScript);
+    }
+
+    @Override
+    public RedisPermits get(String key) {
+        String value = await(commands.get(key));
+        if (value == null) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(value, RedisPermits.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void set(String key, RedisPermits permits, long expiresSeconds) {
+        await(commands.set(key, write(permits), SetArgs.Builder.ex(expiresSeconds)));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, RedisPermits permits, long expiresSeconds) {
+        String[] keys = {key};
+        String[] args = {String.valueOf(expectedVersion), write(permits), String.valueOf(expiresSeconds)};
+        Long updated = eval(compareAndSetScript, compareAndSetSha, ScriptOutputType.INTEGER, keys, args);
+        return updated != null && updated == 1L;
+    }
+
+    @Override
+    public long[] acquireUpTo(String key, PartialGrantRequest request) {
+        String[] keys = {key};
+        List<Long> result = eval(acquireUpToScript, acquireUpToSha, ScriptOutputType.MULTI, keys, request.scriptArgs());
+        return result.get(0) < 0 ? null : new long[]{result.get(0), result.get(1)};
+    }
+
+    /**
+     * 优先用 EVALSHA, redis 中还没有缓存脚本时用 EVAL
+     */
+    private <T> T eval(String script, String sha, ScriptOutputType type, String[] keys, String[] args) {
+        try {
+            return await(commands.<T>evalsha(sha, type, keys, args));
+        } catch (RedisNoScriptException e) {
+            return await(commands.<T>eval(script, type, keys, args));
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        connection.close();
+        redisClient.shutdown();
+    }
+
+    private static String script(String path) {
+        try {
+            return Resources.toString(Resources.getResource(path), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String sha1(String script) {
+        return Hashing.sha1().hashString(script, StandardCharsets.UTF_8).toString();
+    }
+
+    private String write(RedisPermits permits) {
+        try {
+            return objectMapper.writeValueAsString(permits);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private <T> T await(RedisFuture<T> future) {
+        flushSoon();
+        return LettuceFutures.awaitOrCancel(future, timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 还没有 flush 任务时提交一个, 任务开始执行前进入缓冲区的命令都会在这一次 flush 中发出
+     */
+    private void flushSoon() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(() -> {
+                flushScheduled.set(false);
+                connection.flushCommands();
+            });
+        }
+    }
+}
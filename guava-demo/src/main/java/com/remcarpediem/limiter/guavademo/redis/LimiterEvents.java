@@ -0,0 +1,79 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import jdk.jfr.EventType;
+
+/**
+ * 提交 JFR 事件. 没有正在进行的 recording 或者事件被关闭时, 只多一次 volatile 读, 不创建事件对象.
+ * 运行在没有 jdk.jfr 的 JDK 8 (早于 8u262) 上时不记录, 事件类不会被加载
+ */
+final class LimiterEvents {
+    private static final boolean AVAILABLE = available();
+
+    private LimiterEvents() {
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return 开始时间, 事件关闭时返回 -1
+     */
+    static long decisionStart() {
+        return AVAILABLE && Types.DECISION.isEnabled() ? System.nanoTime() : -1L;
+    }
+
+    /**
+     * 全部拿到或者全部拒绝的判断
+     * @param startNanos {@link #decisionStart()} 的返回值
+     * @param microsToWait 需要等待的时间, 负数表示拒绝
+     */
+    static void decision(long startNanos, String key, String operation, int permits, long microsToWait) {
+        decision(startNanos, key, operation, permits, microsToWait >= 0 ? permits : 0, microsToWait);
+    }
+
+    /**
+     * @param grantedPermits 实际拿到的令牌数, 部分拿到时小于 permits
+     */
+    static void decision(long startNanos, String key, String operation, int permits, int grantedPermits, long microsToWait) {
+        if (startNanos < 0) {
+            return;
+        }
+        long roundTripNanos = System.nanoTime() - startNanos;
+        RateLimiterDecisionEvent event = new RateLimiterDecisionEvent();
+        event.key = key;
+        event.operation = operation;
+        event.permits = permits;
+        event.granted = microsToWait >= 0;
+        event.grantedPermits = grantedPermits;
+        event.waitMicros = Math.max(microsToWait, 0L);
+        event.roundTripNanos = roundTripNanos;
+        event.commit();
+    }
+
+    static void sleep(RateLimiter.SleepingStopwatch stopwatch, String key, long micros) {
+        if (micros <= 0 || !AVAILABLE || !Types.SLEEP.isEnabled()) {
+            stopwatch.sleepMicrosUninterruptibly(micros);
+            return;
+        }
+        RateLimiterSleepEvent event = new RateLimiterSleepEvent();
+        event.key = key;
+        event.requestedMicros = micros;
+        event.begin();
+        stopwatch.sleepMicrosUninterruptibly(micros);
+        event.commit();
+    }
+
+    /**
+     * 只在 jdk.jfr 可用时初始化
+     */
+    private static final class Types {
+        static final EventType DECISION = EventType.getEventType(RateLimiterDecisionEvent.class);
+        static final EventType SLEEP = EventType.getEventType(RateLimiterSleepEvent.class);
+    }
+}
@@ -0,0 +1,50 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+/**
+ * 在存储端完成部分预定所需的参数. 存储的令牌的耗时按 SmoothWarmingUp 的方式描述:
+ * thresholdPermits 以上按 slope 线性增加, 以下每个耗时 storedPermitIntervalMicros,
+ * SmoothBursty 的 thresholdPermits 取 {@link Double#MAX_VALUE}, storedPermitIntervalMicros 为 0.
+ * 补充令牌的间隔由存储端按令牌桶的 maxPermits 计算, 和 coolDownIntervalMicros 一致
+ */
+public final class PartialGrantRequest {
+    private final int maxPermits;
+    private final long nowMicros;
+    private final double stableIntervalMicros;
+    private final long warmupPeriodMicros;
+    private final double thresholdPermits;
+    private final double slope;
+    private final double storedPermitIntervalMicros;
+
+    /**
+     * @param warmupPeriodMicros 预热时间, SmoothBursty 为 0, 按 stableIntervalMicros 补充令牌
+     */
+    PartialGrantRequest(int maxPermits, long nowMicros, double stableIntervalMicros, long warmupPeriodMicros,
+                        double thresholdPermits, double slope, double storedPermitIntervalMicros) {
+        this.maxPermits = maxPermits;
+        this.nowMicros = nowMicros;
+        this.stableIntervalMicros = stableIntervalMicros;
+        this.warmupPeriodMicros = warmupPeriodMicros;
+        this.thresholdPermits = thresholdPermits;
+        this.slope = slope;
+        this.storedPermitIntervalMicros = storedPermitIntervalMicros;
+    }
+
+    public int getMaxPermits() {
+        return maxPermits;
+    }
+
+    public long getNowMicros() {
+        return nowMicros;
+    }
+
+    /**
+     * acquire_up_to.lua 的 ARGV
+     */
+    public String[] scriptArgs() {
+        return new String[]{
+                String.valueOf(maxPermits), String.valueOf(nowMicros), String.valueOf(stableIntervalMicros),
+                String.valueOf(warmupPeriodMicros), String.valueOf(thresholdPermits), String.valueOf(slope),
+                String.valueOf(storedPermitIntervalMicros)
+        };
+    }
+}
@@ -0,0 +1,144 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * 令牌桶快照文件, 通过内存映射写入, 进程重启后读取.
+ *
+ * <p>文件格式: 头部为 magic, 令牌桶个数, 内容长度和内容的 crc32, 之后依次是每个令牌桶的
+ * key (2 字节无符号长度和 UTF-8 字节), maxPermits, storedPermits, nextFreeTicketMicros 和 version. 先写内容再写头部,
+ * 写到一半进程退出时 crc 对不上, 读取时直接忽略. 关闭后释放内存映射, 不能再读写.
+ */
+public class PermitsSnapshotFile implements Closeable {
+    private static final int MAGIC = 0x524C5350;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 8;
+    private static final int MAX_KEY_BYTES = 0xFFFF;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer body;
+    private boolean closed;
+
+    public PermitsSnapshotFile(Path path, int capacity) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.body = ByteBuffer.allocate(capacity - HEADER_BYTES);
+    }
+
+    /**
+     * 写入快照, 超出文件容量的令牌桶和 key 超过 {@value #MAX_KEY_BYTES} 字节的令牌桶不会被写入
+     * @param permits key 到令牌桶的映射
+     * @return 写入的令牌桶个数
+     */
+    public synchronized int write(Map<String, RedisPermits> permits) {
+        checkState(!closed, "snapshot file closed");
+        body.clear();
+        int count = 0;
+        for (Map.Entry<String, RedisPermits> entry : permits.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (key.length > MAX_KEY_BYTES) {
+                continue;
+            }
+            int mark = body.position();
+            try {
+                RedisPermits redisPermits = entry.getValue();
+                body.putShort((short) key.length)
+                        .put(key)
+                        .putDouble(redisPermits.getMaxPermits())
+                        .putDouble(redisPermits.getStoredPermits())
+                        .putLong(redisPermits.getNextFreeTicketMicros())
+                        .putLong(redisPermits.getVersion());
+                count++;
+            } catch (BufferOverflowException e) {
+                body.position(mark);
+                break;
+            }
+        }
+        body.flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.limit());
+
+        buffer.position(HEADER_BYTES);
+        buffer.put(body.array(), 0, body.limit());
+        buffer.putInt(0, MAGIC)
+                .putInt(4, count)
+                .putInt(8, body.limit())
+                .putLong(12, crc.getValue());
+        buffer.force();
+        return count;
+    }
+
+    /**
+     * 读取快照, 文件为空或者损坏时返回空
+     */
+    public synchronized Map<String, RedisPermits> read() {
+        checkState(!closed, "snapshot file closed");
+        Map<String, RedisPermits> permits = new LinkedHashMap<>();
+        int count = buffer.getInt(4);
+        int length = buffer.getInt(8);
+        if (buffer.getInt(0) != MAGIC || length < 0 || length > body.capacity()) {
+            return permits;
+        }
+        byte[] bytes = new byte[length];
+        buffer.position(HEADER_BYTES);
+        buffer.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        if (crc.getValue() != buffer.getLong(12)) {
+            return permits;
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[in.getShort() & 0xFFFF];
+            in.get(key);
+            double maxPermits = in.getDouble();
+            double storedPermits = in.getDouble();
+            RedisPermits redisPermits = new RedisPermits(in.getLong());
+            redisPermits.setMaxPermits(maxPermits);
+            redisPermits.setStoredPermits(storedPermits);
+            redisPermits.setVersion(in.getLong());
+            permits.put(new String(key, StandardCharsets.UTF_8), redisPermits);
+        }
+        return permits;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        unmap(buffer);
+        channel.close();
+    }
+
+    /**
+     * JDK 8 没有公开的 unmap, 通过 DirectBuffer 的 cleaner 释放映射, 不支持时等 GC 回收
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // 映射在 buffer 被回收时释放
+        }
+    }
+}
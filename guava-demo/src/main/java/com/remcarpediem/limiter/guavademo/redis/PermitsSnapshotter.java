@@ -0,0 +1,89 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定期把注册的限流器的令牌桶写入快照文件. 节点重启时在创建限流器之前恢复快照,
+ * 限流器创建时按离线的时长补充令牌, 避免重启后 SmoothWarmingUp 重新预热,
+ * 也避免所有节点同时往redis写默认令牌桶
+ */
+public class PermitsSnapshotter {
+    private Logger logger = LoggerFactory.getLogger(PermitsSnapshotter.class.getName());
+
+    private final RateLimiterRegistry rateLimiterRegistry;
+    private final PermitsSnapshotFile snapshotFile;
+    private final long intervalMillis;
+    private ScheduledExecutorService scheduler;
+
+    public PermitsSnapshotter(RateLimiterRegistry rateLimiterRegistry, PermitsSnapshotFile snapshotFile,
+                              long interval, TimeUnit unit) {
+        this.rateLimiterRegistry = rateLimiterRegistry;
+        this.snapshotFile = snapshotFile;
+        this.intervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * 把快照恢复到 permitsStore 中, 已经存在的令牌桶不会被覆盖
+     * @param permitsStore
+     * @return 恢复的令牌桶个数
+     */
+    public int restore(PermitsStore permitsStore) {
+        long nowMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+        int restored = 0;
+        for (Map.Entry<String, RedisPermits> entry : snapshotFile.read().entrySet()) {
+            RedisPermits permits = entry.getValue();
+            if (permitsStore.compareAndSet(entry.getKey(), 0L, permits, permits.expires(nowMicros))) {
+                restored++;
+            }
+        }
+        logger.info("restore {} permits from snapshot", restored);
+        return restored;
+    }
+
+    public synchronized void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("permits-snapshot-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::snapshot, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止定期快照, 退出前再写一次
+     */
+    public synchronized void stop() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        snapshot();
+        snapshotFile.close();
+    }
+
+    public int snapshot() {
+        try {
+            Map<String, RedisPermits> permits = new LinkedHashMap<>();
+            for (RateLimiter rateLimiter : rateLimiterRegistry.getLimiters()) {
+                RedisPermits current = rateLimiter.currentPermits();
+                if (current != null) {
+                    permits.put(rateLimiter.getKey(), current);
+                }
+            }
+            int written = snapshotFile.write(permits);
+            if (written < permits.size()) {
+                logger.warn("snapshot file is full, {} of {} permits written", written, permits.size());
+            }
+            return written;
+        } catch (RuntimeException e) {
+            logger.warn("snapshot permits failed", e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+/**
+ * 令牌桶存储, 可以是redis, 也可以是进程内存
+ */
+public interface PermitsStore {
+
+    RedisPermits get(String key);
+
+    void set(String key, RedisPermits permits, long expiresSeconds);
+
+    /**
+     * 当前存储的令牌桶版本号为 expectedVersion 时才写入, 不存在的令牌桶版本号视为 0
+     * @return 是否写入成功
+     */
+    boolean compareAndSet(String key, long expectedVersion, RedisPermits permits, long expiresSeconds);
+
+    /**
+     * 在存储端一次完成令牌桶的读取, 部分预定和写回, 版本号加一
+     * @return {拿到的令牌数, 写回后的 nextFreeTicketMicros}, 不支持或令牌桶不存在时返回 null,
+     * 由调用方通过 get 和 compareAndSet 完成
+     */
+    default long[] acquireUpTo(String key, PartialGrantRequest request) {
+        return null;
+    }
+}
@@ -2,14 +2,27 @@ package com.remcarpediem.limiter.guavademo.redis;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
 import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.data.redis.serializer.SerializationException;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
-public class PermitsTemplate extends RedisTemplate<String, RedisPermits> {
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PermitsTemplate extends RedisTemplate<String, RedisPermits> implements PermitsStore {
     private ObjectMapper objectMapper = new ObjectMapper();
 
+    private final RedisScript<Long> compareAndSetScript = compareAndSetScript();
+
+    private final RedisScript<List> acquireUpToScript = acquireUpToScript();
+
 
     public PermitsTemplate(ObjectMapper objectMapper) {
         this.objectMapper = objectMapper;
@@ -39,4 +52,47 @@ public class PermitsTemplate extends RedisTemplate<String, RedisPermits> {
             }
         });
     }
+
+    @Override
+    public RedisPermits get(String key) {
+        return opsForValue().get(key);
+    }
+
+    @Override
+    public void set(String key, RedisPermits permits, long expiresSeconds) {
+        opsForValue().set(key, permits, expiresSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean compareAndSet(String key, long expectedVersion, RedisPermits permits, long expiresSeconds) {
+        byte[] value = ((RedisSerializer<RedisPermits>) getValueSerializer()).serialize(permits);
+        Long updated = execute(compareAndSetScript, new StringRedisSerializer(), new GenericToStringSerializer<>(Long.class),
+                Collections.singletonList(key),
+                String.valueOf(expectedVersion), new String(value, StandardCharsets.UTF_8), String.valueOf(expiresSeconds));
+        return updated != null && updated == 1L;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public long[] acquireUpTo(String key, PartialGrantRequest request) {
+        // 结果是整数数组, 不经过结果的序列化器
+        List<Long> result = (List<Long>) execute((RedisScript) acquireUpToScript, new StringRedisSerializer(), (RedisSerializer) new StringRedisSerializer(),
+                Collections.singletonList(key), (Object[]) request.scriptArgs());
+        return result.get(0) < 0 ? null : new long[]{result.get(0), result.get(1)};
+    }
+
+    private static RedisScript<List> acquireUpToScript() {
+        DefaultRedisScript<List> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("scripts/acquire_up_to.lua"));
+        script.setResultType(List.class);
+        return script;
+    }
+
+    private static RedisScript<Long> compareAndSetScript() {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("scripts/compare_and_set_permits.lua"));
+        script.setResultType(Long.class);
+        return script;
+    }
 }
@@ -0,0 +1,138 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 按小时, 天, 月统计的配额. 每个窗口一个计数器, 窗口结束后过期. 本地每次向计数器预扣 batchSize 个额度,
+ * 用完再预扣, 大部分请求只在本地扣减. 预扣后没用完的额度在窗口结束时作废, 所以各节点合计最多少放行
+ * 节点数 * batchSize 个, 不会多放行; batchSize 为 1 时每次都访问计数器, 配额是精确的
+ */
+public class Quota {
+    static final Ticker WALL_CLOCK = new Ticker() {
+        @Override
+        public long read() {
+            return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        }
+    };
+
+    private static final String KEY_PREFIX = "rate-limiter:quota:";
+
+    /**
+     * 计数器在窗口结束后多保留一段时间, 容忍节点之间的时钟误差
+     */
+    private static final long EXPIRE_GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final String key;
+    private final QuotaWindow window;
+    private final long limit;
+    private final QuotaStore quotaStore;
+    private final int batchSize;
+    private final Ticker ticker;
+    private final AtomicReference<WindowState> current = new AtomicReference<>();
+
+    public Quota(String key, QuotaWindow window, long limit, QuotaStore quotaStore, int batchSize) {
+        this(key, window, limit, quotaStore, batchSize, WALL_CLOCK);
+    }
+
+    /**
+     * @param ticker 以 epoch 为起点的时间源, 用于对齐窗口
+     */
+    Quota(String key, QuotaWindow window, long limit, QuotaStore quotaStore, int batchSize, Ticker ticker) {
+        checkArgument(limit >= 0, "limit (%s) must not be negative", limit);
+        checkArgument(batchSize > 0, "batchSize (%s) must be positive", batchSize);
+        this.key = checkNotNull(key);
+        this.window = checkNotNull(window);
+        this.limit = limit;
+        this.quotaStore = checkNotNull(quotaStore);
+        this.batchSize = batchSize;
+        this.ticker = checkNotNull(ticker);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 从当前窗口的配额中扣减, 本地额度不够时向计数器预扣
+     * @return 配额是否足够
+     */
+    public boolean tryConsume(int permits) {
+        checkArgument(permits > 0, "Requested permits (%s) must be positive", permits);
+        WindowState state = state();
+        while (true) {
+            if (state.take(permits)) {
+                return true;
+            }
+            synchronized (state) {
+                if (state.take(permits)) {
+                    return true;
+                }
+                if (state.exhausted) {
+                    return false;
+                }
+                long request = Math.max(batchSize, permits);
+                long total = quotaStore.incrementBy(state.counterKey, request, state.endMillis + EXPIRE_GRACE_MILLIS);
+                long granted = Math.max(Math.min(request, limit - (total - request)), 0L);
+                if (granted < request) {
+                    // 计数器已经用完, 这个窗口内不再访问计数器
+                    state.exhausted = true;
+                }
+                state.allowance.addAndGet(granted);
+            }
+        }
+    }
+
+    /**
+     * 退回还在当前窗口内的额度, 只退回到本地, 不访问计数器
+     */
+    public void refund(int permits) {
+        WindowState state = current.get();
+        if (state != null && now() < state.endMillis) {
+            state.allowance.addAndGet(permits);
+        }
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    private WindowState state() {
+        long nowMillis = now();
+        WindowState state = current.get();
+        if (state != null && nowMillis < state.endMillis) {
+            return state;
+        }
+        long startMillis = window.startMillis(nowMillis);
+        WindowState next = new WindowState(KEY_PREFIX + key + ":" + window.name().toLowerCase() + ":" + startMillis,
+                window.endMillis(startMillis));
+        return current.compareAndSet(state, next) ? next : current.get();
+    }
+
+    private static final class WindowState {
+        private final String counterKey;
+        private final long endMillis;
+        private final AtomicLong allowance = new AtomicLong();
+        private volatile boolean exhausted;
+
+        WindowState(String counterKey, long endMillis) {
+            this.counterKey = counterKey;
+            this.endMillis = endMillis;
+        }
+
+        boolean take(int permits) {
+            long available;
+            do {
+                available = allowance.get();
+                if (available < permits) {
+                    return false;
+                }
+            } while (!allowance.compareAndSet(available, available - permits));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+/**
+ * 配额窗口的计数器存储, 可以是redis, 也可以是进程内存
+ */
+public interface QuotaStore {
+
+    /**
+     * 计数器加上 delta, 计数器在 expireAtMillis 之后过期
+     * @return 加上之后的值
+     */
+    long incrementBy(String key, long delta, long expireAtMillis);
+}
@@ -0,0 +1,35 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.util.Collections;
+
+/**
+ * 配额计数器保存在redis中, INCRBY 和设置过期时间在一个脚本中完成
+ */
+public class QuotaTemplate extends RedisTemplate<String, String> implements QuotaStore {
+
+    private final RedisScript<Long> incrementScript = incrementScript();
+
+    public QuotaTemplate() {
+        setKeySerializer(new StringRedisSerializer());
+        setValueSerializer(new StringRedisSerializer());
+    }
+
+    @Override
+    public long incrementBy(String key, long delta, long expireAtMillis) {
+        Long total = execute(incrementScript, Collections.singletonList(key), String.valueOf(delta), String.valueOf(expireAtMillis));
+        return total == null ? 0L : total;
+    }
+
+    private static RedisScript<Long> incrementScript() {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("scripts/increment_quota.lua"));
+        script.setResultType(Long.class);
+        return script;
+    }
+}
@@ -0,0 +1,63 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * 配额的统计窗口, 按 UTC 对齐到整点, 整天, 自然月
+ */
+public enum QuotaWindow {
+    HOUR {
+        @Override
+        ZonedDateTime start(ZonedDateTime time) {
+            return time.truncatedTo(ChronoUnit.HOURS);
+        }
+
+        @Override
+        ZonedDateTime next(ZonedDateTime start) {
+            return start.plusHours(1);
+        }
+    },
+    DAY {
+        @Override
+        ZonedDateTime start(ZonedDateTime time) {
+            return time.truncatedTo(ChronoUnit.DAYS);
+        }
+
+        @Override
+        ZonedDateTime next(ZonedDateTime start) {
+            return start.plusDays(1);
+        }
+    },
+    MONTH {
+        @Override
+        ZonedDateTime start(ZonedDateTime time) {
+            return time.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+        }
+
+        @Override
+        ZonedDateTime next(ZonedDateTime start) {
+            return start.plusMonths(1);
+        }
+    };
+
+    abstract ZonedDateTime start(ZonedDateTime time);
+
+    abstract ZonedDateTime next(ZonedDateTime start);
+
+    /**
+     * 包含 millis 的窗口的开始时间
+     */
+    public long startMillis(long millis) {
+        return start(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC)).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 从 startMillis 开始的窗口的结束时间(不包含)
+     */
+    public long endMillis(long startMillis) {
+        return next(Instant.ofEpochMilli(startMillis).atZone(ZoneOffset.UTC)).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,48 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+/**
+ * 存储在redis中的限流配置, version 由 redis 自增生成, 保证全局有序
+ */
+public class RateDefinition {
+    private String key;
+    private double permitsPerSecond;
+    private long version;
+
+    public RateDefinition() {
+    }
+
+    public RateDefinition(String key, double permitsPerSecond, long version) {
+        this.key = key;
+        this.permitsPerSecond = permitsPerSecond;
+        this.version = version;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public void setPermitsPerSecond(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    @Override
+    public String toString() {
+        return "RateDefinition{key=" + key + ", permitsPerSecond=" + permitsPerSecond + ", version=" + version + "}";
+    }
+}
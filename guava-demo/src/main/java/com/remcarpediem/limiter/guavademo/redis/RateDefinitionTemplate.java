@@ -0,0 +1,13 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+public class RateDefinitionTemplate extends RedisTemplate<String, RateDefinition> {
+
+    public RateDefinitionTemplate() {
+        setKeySerializer(new StringRedisSerializer());
+        setValueSerializer(new Jackson2JsonRedisSerializer<>(RateDefinition.class));
+    }
+}
@@ -0,0 +1,11 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+/**
+ * 拿不到令牌时不等待, 直接失败
+ */
+public class RateLimitExceededException extends RuntimeException {
+
+    public RateLimitExceededException(String key) {
+        super("Rate limit exceeded for " + key);
+    }
+}
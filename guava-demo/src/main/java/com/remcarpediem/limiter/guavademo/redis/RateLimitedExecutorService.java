@@ -0,0 +1,320 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 按限流器的速率执行任务. 提交的任务先进入有界队列, 由单独的调度线程按速率取出交给 delegate 执行,
+ * 等待令牌时只有调度线程在 sleep, delegate 的线程只执行已经拿到令牌的任务. 队列满时按 {@link RejectionPolicy} 处理
+ */
+public class RateLimitedExecutorService extends AbstractExecutorService {
+
+    /**
+     * 队列满时的处理方式
+     */
+    public interface RejectionPolicy {
+        void rejected(Runnable task, RateLimitedExecutorService executor);
+    }
+
+    /**
+     * 抛出 {@link RejectedExecutionException}
+     */
+    public static final RejectionPolicy ABORT = (task, executor) -> {
+        throw new RejectedExecutionException("Task " + task + " rejected from " + executor);
+    };
+
+    /**
+     * 丢弃新提交的任务
+     */
+    public static final RejectionPolicy DISCARD = (task, executor) -> {
+    };
+
+    /**
+     * 丢弃队列中最早的任务, 再重新提交
+     */
+    public static final RejectionPolicy DISCARD_OLDEST = (task, executor) -> {
+        if (!executor.isShutdown()) {
+            executor.queue.poll();
+            executor.execute(task);
+        }
+    };
+
+    /**
+     * 由提交任务的线程拿令牌后执行, 自然地减慢提交速度
+     */
+    public static final RejectionPolicy CALLER_RUNS = (task, executor) -> {
+        if (!executor.isShutdown()) {
+            executor.rateLimiter.acquire();
+            task.run();
+        }
+    };
+
+    private Logger logger = LoggerFactory.getLogger(RateLimitedExecutorService.class.getName());
+
+    private final RateLimiter rateLimiter;
+    private final ExecutorService delegate;
+    private final BlockingQueue<Runnable> queue;
+    private final RejectionPolicy rejectionPolicy;
+    private final Thread scheduler;
+    /**
+     * 保护关闭状态, 入队和调度线程手中的任务, 保证关闭之后不会再有任务进入队列
+     */
+    private final ReentrantLock mainLock = new ReentrantLock();
+    private final Condition notEmpty = mainLock.newCondition();
+    private final Condition dispatched = mainLock.newCondition();
+    private volatile boolean shutdown;
+    /**
+     * 调度线程取出后正在等待令牌的任务, shutdownNow 时收回
+     */
+    private Runnable pending;
+    /**
+     * 调度线程正在把任务交给 delegate
+     */
+    private boolean dispatching;
+
+    public RateLimitedExecutorService(RateLimiter rateLimiter, ExecutorService delegate, int queueCapacity) {
+        this(rateLimiter, delegate, queueCapacity, ABORT);
+    }
+
+    public RateLimitedExecutorService(RateLimiter rateLimiter, ExecutorService delegate, int queueCapacity,
+                                      RejectionPolicy rejectionPolicy) {
+        checkArgument(queueCapacity > 0, "queueCapacity (%s) must be positive", queueCapacity);
+        this.rateLimiter = checkNotNull(rateLimiter);
+        this.delegate = checkNotNull(delegate);
+        this.rejectionPolicy = checkNotNull(rejectionPolicy);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.scheduler = new ThreadFactoryBuilder()
+                .setNameFormat("rate-limited-scheduler-" + rateLimiter.getKey() + "-%d")
+                .setDaemon(true)
+                .build()
+                .newThread(this::schedule);
+        this.scheduler.start();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        checkNotNull(task);
+        boolean offered;
+        mainLock.lock();
+        try {
+            if (shutdown) {
+                throw new RejectedExecutionException("Task " + task + " rejected from " + this);
+            }
+            offered = queue.offer(task);
+            if (offered) {
+                notEmpty.signal();
+            }
+        } finally {
+            mainLock.unlock();
+        }
+        // 拒绝策略可能阻塞或者重新提交, 在锁外执行
+        if (!offered) {
+            rejectionPolicy.rejected(task, this);
+        }
+    }
+
+    /**
+     * 每拿到一个令牌放行一个任务. 关闭后把队列中剩下的任务执行完再关闭 delegate.
+     * 拿令牌或交给 delegate 失败时这个任务交给拒绝策略, 调度线程继续处理后面的任务;
+     * 调度线程异常退出时转为关闭状态, 队列中剩下的任务交给拒绝策略, 不会再接受永远不执行的任务
+     */
+    private void schedule() {
+        try {
+            Runnable task;
+            while ((task = take()) != null) {
+                try {
+                    rateLimiter.acquire();
+                } catch (RuntimeException e) {
+                    if (!reclaim(task)) {
+                        return;
+                    }
+                    logger.warn("acquire for task {} failed", task, e);
+                    reject(task);
+                    continue;
+                }
+                try {
+                    if (!dispatch(task)) {
+                        // 等待令牌期间被 shutdownNow, 任务已经交给 shutdownNow 返回
+                        return;
+                    }
+                } catch (RuntimeException e) {
+                    logger.warn("dispatch task {} failed", task, e);
+                    reject(task);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutdownNow
+        } finally {
+            for (Runnable remaining : terminate()) {
+                reject(remaining);
+            }
+            delegate.shutdown();
+        }
+    }
+
+    /**
+     * 收回等待令牌的任务, 已经被 shutdownNow 收回时返回 false
+     */
+    private boolean reclaim(Runnable task) {
+        mainLock.lock();
+        try {
+            if (pending != task) {
+                return false;
+            }
+            pending = null;
+            return true;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * 调度线程退出时转为关闭状态, 返回还留在队列中的任务. 正常退出时队列已经为空
+     */
+    private List<Runnable> terminate() {
+        List<Runnable> remaining = new ArrayList<>();
+        mainLock.lock();
+        try {
+            shutdown = true;
+            queue.drainTo(remaining);
+        } finally {
+            mainLock.unlock();
+        }
+        return remaining;
+    }
+
+    /**
+     * 在调度线程上交给拒绝策略, 拒绝策略抛出的异常没有调用方可以接收, 只记录日志
+     */
+    private void reject(Runnable task) {
+        try {
+            rejectionPolicy.rejected(task, this);
+        } catch (RuntimeException e) {
+            logger.warn("task {} dropped", task, e);
+        }
+    }
+
+    /**
+     * 取出下一个任务作为等待令牌的任务, 关闭且队列为空时返回 null
+     */
+    private Runnable take() throws InterruptedException {
+        mainLock.lock();
+        try {
+            while (queue.isEmpty() && !shutdown) {
+                notEmpty.await();
+            }
+            pending = queue.poll();
+            return pending;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * 把拿到令牌的任务交给 delegate, 任务已经被 shutdownNow 收回时返回 false
+     */
+    private boolean dispatch(Runnable task) {
+        mainLock.lock();
+        try {
+            if (pending != task) {
+                return false;
+            }
+            pending = null;
+            dispatching = true;
+        } finally {
+            mainLock.unlock();
+        }
+        try {
+            delegate.execute(task);
+        } finally {
+            mainLock.lock();
+            try {
+                dispatching = false;
+                dispatched.signalAll();
+            } finally {
+                mainLock.unlock();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        mainLock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * 返回队列中的任务, 调度线程等待令牌的任务和 delegate 中还没有执行的任务.
+     * 调度线程正在把任务交给 delegate 时等交接完成, 保证任务不会在 delegate 关闭后被拒绝而丢失
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = new ArrayList<>();
+        mainLock.lock();
+        try {
+            shutdown = true;
+            scheduler.interrupt();
+            if (pending != null) {
+                tasks.add(pending);
+                pending = null;
+            }
+            queue.drainTo(tasks);
+            // 在 delegate 中运行的任务自己调用 shutdownNow 时不能等自己
+            while (dispatching && Thread.currentThread() != scheduler) {
+                dispatched.awaitUninterruptibly();
+            }
+        } finally {
+            mainLock.unlock();
+        }
+        tasks.addAll(delegate.shutdownNow());
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return !scheduler.isAlive() && delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        TimeUnit.NANOSECONDS.timedJoin(scheduler, Math.max(deadline - System.nanoTime(), 0L));
+        if (scheduler.isAlive()) {
+            return false;
+        }
+        return delegate.awaitTermination(Math.max(deadline - System.nanoTime(), 0L), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 队列中等待令牌的任务数
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+}
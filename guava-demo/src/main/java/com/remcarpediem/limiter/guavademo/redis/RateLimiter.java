@@ -3,10 +3,12 @@ package com.remcarpediem.limiter.guavademo.redis;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.remcarpediem.limiter.guavademo.redis.SmoothRateLimiter.SmoothBursty;
-import org.redisson.api.RLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -17,7 +19,7 @@ public abstract class RateLimiter {
 
 
     public static RateLimiter create(double permitsPerSecond) {
-
+        return create(permitsPerSecond, SleepingStopwatch.createFromSystemTimer());
     }
 
     static RateLimiter create(double permitsPerSecond, SleepingStopwatch stopwatch) {
@@ -26,6 +28,12 @@ public abstract class RateLimiter {
         return rateLimiter;
     }
 
+    static RateLimiter create(double permitsPerSecond, SleepingStopwatch stopwatch, String key, PermitsStore permitsStore, Lock lock) {
+        RateLimiter rateLimiter = new SmoothBursty(stopwatch, key, permitsStore, lock, 1.0);
+        rateLimiter.setRate(permitsPerSecond);
+        return rateLimiter;
+    }
+
     public static RateLimiter create(double permitsPerSecond, long warmupPeriod, TimeUnit unit) {
         checkArgument(warmupPeriod >= 0, "warmupPeriod must not be negative: %s", warmupPeriod);
         return create(
@@ -44,48 +52,198 @@ public abstract class RateLimiter {
         return rateLimiter;
     }
 
+    static RateLimiter create(
+            double permitsPerSecond,
+            long warmupPeriod,
+            TimeUnit unit,
+            double coldFactor,
+            SleepingStopwatch stopwatch,
+            String key,
+            PermitsStore permitsStore,
+            Lock lock) {
+        RateLimiter rateLimiter = new SmoothRateLimiter.SmoothWarmingUp(stopwatch, key, permitsStore, lock, warmupPeriod, unit, coldFactor);
+        rateLimiter.setRate(permitsPerSecond);
+        return rateLimiter;
+    }
 
-    private String key;
-    private Long permitsPerSecond;
-    private Integer maxBurstSeconds = 60;
-//    private
-    private PermitsTemplate permitsTemplate;
-    private RLock rLock;
 
-    RedisPermits redisPermits;
+    private final String key;
+    private final PermitsStore permitsStore;
+    private final Lock lock;
 
     SleepingStopwatch stopwatch;
 
-    double stableIntervalMicros;
+    volatile double stableIntervalMicros;
 
+    /**
+     * 最近一次生效的速率配置版本, 用于忽略乱序到达的旧配置
+     */
+    private long rateVersion;
+
+    /**
+     * 速率是本地配置, 只需要本地互斥
+     */
+    private final Object rateMutex = new Object();
+
+    /**
+     * 最近一次读到的令牌桶 nextFreeTicketMicros. 除了结算退回令牌, 令牌桶的 nextFreeTicketMicros 只会往后推,
+     * 所以这个值是它的下界, 在这之前一定拿不到令牌的 tryAcquire 可以直接在本地拒绝, 不用访问存储.
+     * 其他节点退回的令牌要等到这个时间之后才能被本节点的 tryAcquire 用到, 只会多拒绝, 不会多放行
+     */
+    private final AtomicLong nextAvailableMicros = new AtomicLong(Long.MIN_VALUE);
+
+    private volatile ReservationCoalescer coalescer;
+
+    private volatile HeavyHitters heavyHitters;
+
+    private volatile TokenClient tokenClient;
+
+    /**
+     * 未指定存储时令牌桶只保存在进程内存中
+     */
     RateLimiter(SleepingStopwatch stopwatch) {
+        this(stopwatch, "default", new InMemoryPermitsStore());
+    }
+
+    RateLimiter(SleepingStopwatch stopwatch, String key, PermitsStore permitsStore) {
+        this(stopwatch, key, permitsStore, new ReentrantLock());
+    }
+
+    /**
+     * 多个节点共享redis中的令牌桶时, lock 需要是分布式锁, 比如 redisson 的 RLock.
+     * lock 为 null 时不加锁, 按令牌桶的版本号做乐观并发控制, 写入时版本号不一致就重新读取重试
+     */
+    RateLimiter(SleepingStopwatch stopwatch, String key, PermitsStore permitsStore, Lock lock) {
         this.stopwatch = checkNotNull(stopwatch);
+        this.key = checkNotNull(key);
+        this.permitsStore = checkNotNull(permitsStore);
+        this.lock = lock;
     }
 
+    public String getKey() {
+        return key;
+    }
 
     /**
-     * 生成并且默认存储令牌桶
+     * 开启后同一个节点上并发的 acquire 合并为一次令牌桶读写, 每个请求的等待时间和单独预定时一致
+     * @param coalescing
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescer = coalescing ? new ReservationCoalescer(this) : null;
+    }
+
+
+    /**
+     * 设置后拿到和被拒绝的令牌数计入 heavyHitters
+     * @param heavyHitters 为 null 时不统计
+     */
+    public void setHeavyHitters(HeavyHitters heavyHitters) {
+        this.heavyHitters = heavyHitters;
+    }
+
+    /**
+     * 设置后 acquire, tryAcquire, tryAcquireUpTo 和结算都由令牌服务按 key 判断, 服务端的速率通过 {@link TokenServer#setRate}
+     * 或服务端的注册中心配置, 本地的令牌桶不再使用. 服务不可用时按客户端的 FallbackPolicy 处理,
+     * DENY 时 acquire 抛出 {@link RateLimitExceededException}
+     * @param tokenClient 为 null 时使用本地或存储中的令牌桶
+     */
+    public void setTokenClient(TokenClient tokenClient) {
+        this.tokenClient = tokenClient;
+    }
+
+    private void recordAcquired(long permits) {
+        HeavyHitters hitters = this.heavyHitters;
+        if (hitters != null && permits > 0) {
+            hitters.recordAcquired(key, permits);
+        }
+    }
+
+    private void recordRejected(long permits) {
+        HeavyHitters hitters = this.heavyHitters;
+        if (hitters != null) {
+            hitters.recordRejected(key, permits);
+        }
+    }
+
+    /**
+     * 生成默认令牌桶, 版本号为 0
      * @return
      */
-    private RedisPermits putDefaultPermits() {
-        RedisPermits redisPermits = new RedisPermits(permitsPerSecond, maxBurstSeconds, System.currentTimeMillis());
-        permitsTemplate.opsForValue().set(key, redisPermits, redisPermits.expires(), TimeUnit.SECONDS);
+    private RedisPermits putDefaultPermits(long nowMicros) {
+        RedisPermits redisPermits = new RedisPermits(nowMicros);
+        if (stableIntervalMicros > 0.0) {
+            doSetRate(redisPermits, doGetRate(), nowMicros);
+        }
         return redisPermits;
     }
 
     /**
-     * 获取更新令牌桶
+     * 获取令牌桶, 不存在时生成默认令牌桶
      * @return
      */
-    private RedisPermits permits() {
-        RedisPermits permits = permitsTemplate.opsForValue().get(key);
+    private RedisPermits permits(long nowMicros) {
+        RedisPermits permits = permitsStore.get(key);
         if (permits == null) {
-            permits = putDefaultPermits();
+            return putDefaultPermits(nowMicros);
         }
-        permitsTemplate.opsForValue().set(key, permits, permits.expires(), TimeUnit.SECONDS);
         return permits;
     }
 
+    /**
+     * 当前存储的令牌桶, 不存在时返回 null
+     */
+    RedisPermits currentPermits() {
+        return permitsStore.get(key);
+    }
+
+    /**
+     * 对令牌桶的一次修改, 返回负数表示没有修改令牌桶
+     */
+    interface PermitsUpdate {
+        long apply(RedisPermits permits, long nowMicros);
+    }
+
+    /**
+     * 读取令牌桶, 修改后写回. 有锁时在锁内完成, 否则以版本号作为 fencing token 比较写入, 失败则重试
+     */
+    final long update(PermitsUpdate update) {
+        if (lock != null) {
+            try {
+                lock.lock();
+                long nowMicros = stopwatch.readMicros();
+                RedisPermits permits = permits(nowMicros);
+                long result = update.apply(permits, nowMicros);
+                if (result >= 0) {
+                    permits.setVersion(permits.getVersion() + 1);
+                    permitsStore.set(key, permits, permits.expires(nowMicros));
+                }
+                rememberNextAvailable(permits);
+                return result;
+            } finally {
+                lock.unlock();
+            }
+        }
+        while (true) {
+            long nowMicros = stopwatch.readMicros();
+            RedisPermits permits = permits(nowMicros);
+            long expectedVersion = permits.getVersion();
+            long result = update.apply(permits, nowMicros);
+            if (result < 0) {
+                rememberNextAvailable(permits);
+                return result;
+            }
+            permits.setVersion(expectedVersion + 1);
+            if (permitsStore.compareAndSet(key, expectedVersion, permits, permits.expires(nowMicros))) {
+                rememberNextAvailable(permits);
+                return result;
+            }
+        }
+    }
+
+    private void rememberNextAvailable(RedisPermits permits) {
+        nextAvailableMicros.accumulateAndGet(permits.getNextFreeTicketMicros(), Math::max);
+    }
+
 
     public double acquire() {
         return acquire(1);
@@ -94,26 +252,51 @@ public abstract class RateLimiter {
 
     public final void setRate(double permitsPerSecond) {
         Preconditions.checkArgument(permitsPerSecond > 0.0 && !Double.isNaN(permitsPerSecond), "rate must be positive");
-        try {
-            rLock.lock();
-            doSetRate(permitsPerSecond, stopwatch.readMicros());
-        } finally {
-            rLock.unlock();
+        synchronized (rateMutex) {
+            update((permits, nowMicros) -> {
+                doSetRate(permits, permitsPerSecond, nowMicros);
+                return 0L;
+            });
         }
     }
 
-    abstract void doSetRate(double permitsPerSecond, long nowMicros);
+    abstract void doSetRate(RedisPermits permits, double permitsPerSecond, long nowMicros);
 
+    /**
+     * 按版本号更新速率, 版本号不大于当前版本的配置会被忽略
+     * @param permitsPerSecond
+     * @param version
+     * @return 是否应用了该配置
+     */
+    public final boolean applyRate(double permitsPerSecond, long version) {
+        Preconditions.checkArgument(permitsPerSecond > 0.0 && !Double.isNaN(permitsPerSecond), "rate must be positive");
+        synchronized (rateMutex) {
+            if (version <= rateVersion) {
+                return false;
+            }
+            update((permits, nowMicros) -> {
+                doSetRate(permits, permitsPerSecond, nowMicros);
+                return 0L;
+            });
+            rateVersion = version;
+            return true;
+        }
+    }
 
-    public final double getRate() {
-        try {
-            rLock.lock();
-            return doGetRate();
-        } finally {
-            rLock.unlock();
+    public long getRateVersion() {
+        synchronized (rateMutex) {
+            return rateVersion;
         }
     }
 
+
+    /**
+     * 速率只保存在本地, 读取不需要加锁
+     */
+    public final double getRate() {
+        return doGetRate();
+    }
+
     abstract double doGetRate();
 
 
@@ -124,37 +307,160 @@ public abstract class RateLimiter {
      * @return time spent sleeping to enforce rate, in millisencods; o if negative or zero
      */
     public double acquire(int tokens) {
-        Long milliToWait = reserve(tokens);
-        logger.info("acquire for {}ms {}", milliToWait, Thread.currentThread().getName());
-        stopwatch.sleepMicrosUninterruptibly(milliToWait);
+        long milliToWait = reserve(tokens);
+        logger.debug("acquire for {}ms {}", milliToWait, Thread.currentThread().getName());
+        stopwatch.sleepMicrosUninterruptibly(key, milliToWait);
         return milliToWait;
     }
 
 
+    /**
+     * 成本要在调用结束后才知道时, 先按预估成本拿令牌, 调用结束后用返回的 {@link Reservation} 按实际成本结算
+     * @param estimatedPermits 预估的令牌数
+     * @return 待结算的预定
+     */
+    public Reservation acquireEstimated(int estimatedPermits) {
+        long microsToWait = reserve(estimatedPermits);
+        stopwatch.sleepMicrosUninterruptibly(key, microsToWait);
+        return new Reservation(this, estimatedPermits, microsToWait);
+    }
+
+    /**
+     * 补扣或退回令牌, 不影响已经预定的请求的等待时间
+     * @param permitsDelta 正数补扣, 负数退回
+     */
+    void settle(int permitsDelta) {
+        if (permitsDelta == 0) {
+            return;
+        }
+        TokenClient client = this.tokenClient;
+        if (client != null) {
+            client.settle(key, permitsDelta);
+            return;
+        }
+        update((redisPermits, nowMicros) -> {
+            settleEarliestAvailable(redisPermits, permitsDelta, nowMicros);
+            return 0L;
+        });
+        if (permitsDelta < 0) {
+            // 退回令牌后 nextFreeTicketMicros 可能提前, 本地记录的下界失效
+            nextAvailableMicros.set(Long.MIN_VALUE);
+        }
+    }
+
     public Boolean tryAcquire(int permits, long timeout, TimeUnit timeUnit) {
-        long timeoutMicros = Math.max(timeUnit.toMicros(timeout), 0);
-        checkPermits(permits);
+        long microsToWait = tryReserve(permits, Math.max(timeUnit.toMicros(timeout), 0));
+        if (microsToWait < 0) {
+            return false;
+        }
+        stopwatch.sleepMicrosUninterruptibly(key, microsToWait);
+        return true;
+    }
 
-        long microsToWait;
+    /**
+     * 不等待, 拿到当前可用的令牌, 最多 maxPermits 个. 没有存储的令牌但现在可以预定时拿到 1 个, 和 tryAcquire 一致.
+     * 不加锁的模式下存储支持时在存储端一次完成, 只需要一次网络往返
+     * @param maxPermits 最多拿的令牌数
+     * @return 拿到的令牌数, 可能为 0
+     */
+    public int tryAcquireUpTo(int maxPermits) {
+        checkPermits(maxPermits);
+        long startNanos = LimiterEvents.decisionStart();
+        int granted = grantUpTo(maxPermits);
+        LimiterEvents.decision(startNanos, key, "tryAcquireUpTo", maxPermits, granted, granted == 0 ? -1L : 0L);
+        if (granted == 0) {
+            recordRejected(maxPermits);
+        } else {
+            recordAcquired(granted);
+        }
+        return granted;
+    }
 
-        try {
-            rLock.lock();
-            long nowMicros = stopwatch.readMicros();
-            if (!canAcquire(nowMicros, timeoutMicros)) {
+    private int grantUpTo(int maxPermits) {
+        TokenClient client = this.tokenClient;
+        if (client != null) {
+            return client.tryAcquireUpTo(key, maxPermits);
+        }
+        long nowMicros = stopwatch.readMicros();
+        if (nextAvailableMicros.get() > nowMicros) {
+            return 0;
+        }
+        if (lock == null) {
+            // 令牌桶不存在时存储返回 null, 由下面的读改写生成默认令牌桶
+            long[] result = permitsStore.acquireUpTo(key, partialGrantRequest(maxPermits, nowMicros));
+            if (result != null) {
+                nextAvailableMicros.accumulateAndGet(result[1], Math::max);
+                return (int) result[0];
+            }
+        }
+        long granted = update((redisPermits, now) -> {
+            int available = availablePermits(redisPermits, maxPermits, now);
+            if (available == 0) {
+                return -1L;
+            }
+            reserveEarliestAvailable(redisPermits, available, now);
+            return available;
+        });
+        return (int) Math.max(granted, 0L);
+    }
+
+    /**
+     * 同时检查配额和限流器, 都通过时才拿到令牌. 配额先在本地预扣的额度中扣减, 被后面的配额或限流器拒绝时退回
+     * @param quotas 按小时, 天, 月统计的配额
+     */
+    public Boolean tryAcquire(int permits, long timeout, TimeUnit timeUnit, Quota... quotas) {
+        for (int i = 0; i < quotas.length; i++) {
+            if (!quotas[i].tryConsume(permits)) {
+                refund(quotas, i, permits);
+                recordRejected(permits);
                 return false;
-            } else {
-                microsToWait = reserveAndGetWaitLength(permits, nowMicros);
             }
-        } finally {
-            rLock.unlock();
         }
+        if (tryAcquire(permits, timeout, timeUnit)) {
+            return true;
+        }
+        refund(quotas, quotas.length, permits);
+        return false;
+    }
 
-        stopwatch.sleepMicrosUninterruptibly(microsToWait);
-        return true;
+    private static void refund(Quota[] quotas, int consumed, int permits) {
+        for (int i = 0; i < consumed; i++) {
+            quotas[i].refund(permits);
+        }
     }
 
-    private boolean canAcquire(long nowMicros, long timeoutMicros) {
-        return queryEarliestAvailable(nowMicros) - timeoutMicros <= nowMicros;
+    /**
+     * 在超时时间内可以拿到令牌时预定令牌
+     * @param permits
+     * @param timeoutMicros
+     * @return 需要等待的时间, 拿不到令牌时返回 -1
+     */
+    long tryReserve(int permits, long timeoutMicros) {
+        checkPermits(permits);
+        long startNanos = LimiterEvents.decisionStart();
+        long microsToWait = -1L;
+        TokenClient client = this.tokenClient;
+        if (client != null) {
+            microsToWait = client.decide(key, permits, timeoutMicros);
+        } else if (nextAvailableMicros.get() - timeoutMicros <= stopwatch.readMicros()) {
+            microsToWait = update((redisPermits, nowMicros) -> {
+                if (!canAcquire(redisPermits, nowMicros, timeoutMicros)) {
+                    return -1L;
+                }
+                return reserveAndGetWaitLength(redisPermits, permits, nowMicros);
+            });
+        }
+        LimiterEvents.decision(startNanos, key, "tryAcquire", permits, microsToWait);
+        if (microsToWait < 0) {
+            recordRejected(permits);
+        } else {
+            recordAcquired(permits);
+        }
+        return microsToWait;
+    }
+
+    private boolean canAcquire(RedisPermits permits, long nowMicros, long timeoutMicros) {
+        return queryEarliestAvailable(permits, nowMicros) - timeoutMicros <= nowMicros;
     }
 
 
@@ -164,39 +470,50 @@ public abstract class RateLimiter {
     //}
 
 
-    private Long reserve(int permits) throws IllegalArgumentException {
+    long reserve(int permits) throws IllegalArgumentException {
         checkToken(permits);
-        // TODO: 这里可以根据redis和zk进行分布式锁
-        try {
-            rLock.lock();
-            return reserveAndGetWaitLength(permits, stopwatch.readMicros());
-        } finally {
-            rLock.unlock();
+        long startNanos = LimiterEvents.decisionStart();
+        TokenClient client = this.tokenClient;
+        ReservationCoalescer reservationCoalescer = this.coalescer;
+        long microsToWait;
+        if (client != null) {
+            microsToWait = client.decide(key, permits, TokenProtocol.ACQUIRE);
+        } else if (reservationCoalescer != null) {
+            microsToWait = reservationCoalescer.reserve(permits);
+        } else {
+            microsToWait = update((redisPermits, nowMicros) -> reserveAndGetWaitLength(redisPermits, permits, nowMicros));
+        }
+        LimiterEvents.decision(startNanos, key, "reserve", permits, microsToWait);
+        if (microsToWait < 0) {
+            // 令牌服务不可用且按 DENY 处理
+            recordRejected(permits);
+            throw new RateLimitExceededException(key);
         }
+        recordAcquired(permits);
+        return microsToWait;
     }
 
     private void checkToken(int token) {
         Preconditions.checkArgument(token > 0, "Requested tokens $tokens must be positive");
     }
 
-    private Boolean canAcquire(Long token, Long timeoutMillis) {
-        return queryEarliestAvailable(token) - timeoutMillis <= 0;
-    }
-
 
     private static void checkPermits(int permits) {
         Preconditions.checkArgument(permits > 0, "Requested permits (%s) must be positive", permits);
     }
 
 
-    private Long reserveAndGetWaitLength(int permits, long nowMicros) {
-        long momentAvailable = reserveEarliestAvailable(permits, nowMicros);
+    long reserveAndGetWaitLength(RedisPermits redisPermits, int permits, long nowMicros) {
+        long momentAvailable = reserveEarliestAvailable(redisPermits, permits, nowMicros);
 
         return Math.max(momentAvailable - nowMicros, 0);
     }
 
-    abstract long reserveEarliestAvailable(int permits, long nowMicros);
-    abstract long queryEarliestAvailable(long nowMicros);
+    abstract long reserveEarliestAvailable(RedisPermits redisPermits, int permits, long nowMicros);
+    abstract long queryEarliestAvailable(RedisPermits redisPermits, long nowMicros);
+    abstract void settleEarliestAvailable(RedisPermits redisPermits, int permitsDelta, long nowMicros);
+    abstract int availablePermits(RedisPermits redisPermits, int maxPermits, long nowMicros);
+    abstract PartialGrantRequest partialGrantRequest(int maxPermits, long nowMicros);
 
 
     abstract static class SleepingStopwatch {
@@ -206,15 +523,26 @@ public abstract class RateLimiter {
 
         protected abstract void sleepMicrosUninterruptibly(long micros);
 
+        /**
+         * 为 key 等待令牌, 开启 JFR 时记录为 {@link RateLimiterSleepEvent}
+         */
+        final void sleepMicrosUninterruptibly(String key, long micros) {
+            LimiterEvents.sleep(this, key, micros);
+        }
+
 
         public static SleepingStopwatch createFromSystemTimer() {
             return new SleepingStopwatch() {
 
+                final long startMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
                 final Stopwatch stopwatch = Stopwatch.createStarted();
 
+                /**
+                 * 以墙上时间为起点, 不同节点写入redis的时间可以互相比较
+                 */
                 @java.lang.Override
                 protected long readMicros() {
-                    return stopwatch.elapsed(TimeUnit.MICROSECONDS);
+                    return startMicros + stopwatch.elapsed(TimeUnit.MICROSECONDS);
                 }
 
                 @java.lang.Override
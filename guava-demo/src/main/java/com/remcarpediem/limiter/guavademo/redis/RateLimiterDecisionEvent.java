@@ -0,0 +1,45 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * 限流器的一次判断, 由 {@link LimiterEvents} 提交
+ */
+@Name("com.remcarpediem.limiter.Decision")
+@Label("Rate Limiter Decision")
+@Category("Rate Limiter")
+@Description("reserve, tryAcquire or tryAcquireUpTo on a rate limiter")
+@StackTrace(false)
+public class RateLimiterDecisionEvent extends jdk.jfr.Event {
+    @Label("Key")
+    String key;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Permits")
+    @Description("Permits requested, the maximum for tryAcquireUpTo")
+    int permits;
+
+    @Label("Granted")
+    boolean granted;
+
+    @Label("Granted Permits")
+    @Description("Permits actually granted, fewer than requested on a partial tryAcquireUpTo grant")
+    int grantedPermits;
+
+    @Label("Wait")
+    @Description("Time the caller has to sleep, 0 when rejected")
+    @Timespan(Timespan.MICROSECONDS)
+    long waitMicros;
+
+    @Label("Backend Round Trip")
+    @Description("Time spent reading and writing the permits store, including the lock")
+    @Timespan(Timespan.NANOSECONDS)
+    long roundTripNanos;
+}
@@ -0,0 +1,98 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 用于 {@link Flux#transform} 的限流操作符, 每个元素一个令牌.
+ * 等待令牌时用 scheduler 延迟发出, 不 sleep. 令牌桶的读写可能访问redis, 在 reserveScheduler 上完成,
+ * 默认为 {@link Schedulers#elastic()}, 不阻塞发出元素的事件循环线程. 元素按顺序逐个判断
+ * <pre>
+ *     flux.transform(RateLimiterOperator.of(rateLimiter))
+ * </pre>
+ */
+public final class RateLimiterOperator<T> implements Function<Flux<T>, Publisher<T>> {
+
+    public enum Mode {
+        /**
+         * 延迟到拿到令牌时发出, 上一个元素发出后才向上游请求下一个
+         */
+        DELAY,
+        /**
+         * 拿不到令牌的元素直接丢弃
+         */
+        DROP,
+        /**
+         * 拿不到令牌时以 {@link RateLimitExceededException} 结束
+         */
+        ERROR
+    }
+
+    private final RateLimiter rateLimiter;
+    private final Mode mode;
+    private final Scheduler scheduler;
+    private final Scheduler reserveScheduler;
+
+    private RateLimiterOperator(RateLimiter rateLimiter, Mode mode, Scheduler scheduler, Scheduler reserveScheduler) {
+        this.rateLimiter = checkNotNull(rateLimiter);
+        this.mode = checkNotNull(mode);
+        this.scheduler = checkNotNull(scheduler);
+        this.reserveScheduler = checkNotNull(reserveScheduler);
+    }
+
+    public static <T> RateLimiterOperator<T> of(RateLimiter rateLimiter) {
+        return of(rateLimiter, Mode.DELAY);
+    }
+
+    public static <T> RateLimiterOperator<T> of(RateLimiter rateLimiter, Mode mode) {
+        return of(rateLimiter, mode, Schedulers.parallel());
+    }
+
+    public static <T> RateLimiterOperator<T> of(RateLimiter rateLimiter, Mode mode, Scheduler scheduler) {
+        return of(rateLimiter, mode, scheduler, Schedulers.elastic());
+    }
+
+    /**
+     * @param scheduler 延迟发出元素的 scheduler
+     * @param reserveScheduler 读写令牌桶的 scheduler, 令牌桶只在进程内时可以用 {@link Schedulers#immediate()}
+     */
+    public static <T> RateLimiterOperator<T> of(RateLimiter rateLimiter, Mode mode, Scheduler scheduler, Scheduler reserveScheduler) {
+        return new RateLimiterOperator<>(rateLimiter, mode, scheduler, reserveScheduler);
+    }
+
+    @Override
+    public Publisher<T> apply(Flux<T> upstream) {
+        switch (mode) {
+            case DROP:
+                return upstream.concatMap(element -> tryReserve().filter(granted -> granted).map(granted -> element), 1);
+            case ERROR:
+                return upstream.concatMap(element -> tryReserve().flatMap(granted -> granted
+                        ? Mono.just(element)
+                        : Mono.error(new RateLimitExceededException(rateLimiter.getKey()))), 1);
+            default:
+                return upstream.concatMap(this::delay, 1);
+        }
+    }
+
+    private Mono<Boolean> tryReserve() {
+        return Mono.fromCallable(() -> rateLimiter.tryReserve(1, 0L) >= 0).subscribeOn(reserveScheduler);
+    }
+
+    private Mono<T> delay(T element) {
+        return Mono.fromCallable(() -> rateLimiter.reserve(1)).subscribeOn(reserveScheduler).flatMap(microsToWait -> {
+            if (microsToWait <= 0) {
+                return Mono.just(element);
+            }
+            return Mono.delay(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(microsToWait)), scheduler).thenReturn(element);
+        });
+    }
+}
@@ -0,0 +1,183 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.GenericToStringSerializer;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 限流器注册中心, 限流配置存储在redis中, 修改后通过 pub/sub 广播给所有节点,
+ * 各节点按版本号应用到本地注册的限流器上
+ */
+public class RateLimiterRegistry implements MessageListener {
+
+    public static final String CHANNEL = "rate-limiter:rates";
+
+    private static final String RATE_KEY_PREFIX = "rate-limiter:rate:";
+
+    private static final String VERSION_KEY_PREFIX = "rate-limiter:rate-version:";
+
+    private Logger logger = LoggerFactory.getLogger(RateLimiterRegistry.class.getName());
+
+    private final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * 未指定存储的限流器共用的进程内令牌桶存储
+     */
+    private final InMemoryPermitsStore localPermitsStore = new InMemoryPermitsStore();
+
+    private final RateDefinitionTemplate rateDefinitionTemplate;
+
+    private final RedisScript<Long> publishScript;
+
+    private volatile HeavyHitters heavyHitters;
+
+    private ScheduledExecutorService refresher;
+
+    public RateLimiterRegistry(RateDefinitionTemplate rateDefinitionTemplate) {
+        this.rateDefinitionTemplate = rateDefinitionTemplate;
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("scripts/publish_rate.lua"));
+        script.setResultType(Long.class);
+        this.publishScript = script;
+    }
+
+    /**
+     * 创建并注册限流器, redis中已有配置时以redis中的配置为准
+     * @param key
+     * @param permitsPerSecond 默认速率
+     * @return
+     */
+    public RateLimiter create(String key, double permitsPerSecond) {
+        return create(key, permitsPerSecond, localPermitsStore, new ReentrantLock());
+    }
+
+    /**
+     * 创建令牌桶存储在 permitsStore 中的限流器, 多个节点共享令牌桶时 lock 需要是分布式锁,
+     * lock 为 null 时按令牌桶版本号乐观并发写入
+     */
+    public RateLimiter create(String key, double permitsPerSecond, PermitsStore permitsStore, Lock lock) {
+        return register(key, RateLimiter.create(permitsPerSecond, RateLimiter.SleepingStopwatch.createFromSystemTimer(), key, permitsStore, lock));
+    }
+
+    public RateLimiter register(String key, RateLimiter rateLimiter) {
+        rateLimiter.setHeavyHitters(heavyHitters);
+        limiters.put(key, rateLimiter);
+        load(key);
+        return rateLimiter;
+    }
+
+    public RateLimiter get(String key) {
+        return limiters.get(key);
+    }
+
+    public Collection<RateLimiter> getLimiters() {
+        return limiters.values();
+    }
+
+    /**
+     * 已注册和之后注册的限流器都计入 heavyHitters
+     */
+    public void setHeavyHitters(HeavyHitters heavyHitters) {
+        this.heavyHitters = heavyHitters;
+        for (RateLimiter rateLimiter : limiters.values()) {
+            rateLimiter.setHeavyHitters(heavyHitters);
+        }
+    }
+
+    public PermitsStore getLocalPermitsStore() {
+        return localPermitsStore;
+    }
+
+    /**
+     * 修改速率并广播给所有节点
+     * @param key
+     * @param permitsPerSecond
+     * @return 新配置的版本号
+     */
+    public long publish(String key, double permitsPerSecond) {
+        Preconditions.checkArgument(permitsPerSecond > 0.0 && !Double.isNaN(permitsPerSecond), "rate must be positive");
+        return rateDefinitionTemplate.execute(publishScript, new StringRedisSerializer(), new GenericToStringSerializer<>(Long.class),
+                Arrays.asList(RATE_KEY_PREFIX + key, VERSION_KEY_PREFIX + key),
+                key, String.valueOf(permitsPerSecond), CHANNEL);
+    }
+
+    /**
+     * 重新从redis加载所有配置, 用于补偿断线期间丢失的广播, 由 {@link #startRefresh} 定期调用
+     */
+    public void refresh() {
+        for (String key : limiters.keySet()) {
+            load(key);
+        }
+    }
+
+    /**
+     * 按固定间隔在后台线程执行 {@link #refresh()}
+     */
+    public synchronized void startRefresh(long interval, TimeUnit unit) {
+        Preconditions.checkArgument(interval > 0, "interval must be positive");
+        Preconditions.checkState(refresher == null, "refresh already started");
+        refresher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("rate-refresh-%d").setDaemon(true).build());
+        refresher.scheduleWithFixedDelay(this::refresh, interval, interval, unit);
+    }
+
+    public synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        RateDefinition definition = (RateDefinition) rateDefinitionTemplate.getValueSerializer().deserialize(message.getBody());
+        if (definition != null) {
+            apply(definition);
+        }
+    }
+
+    /**
+     * redis不可用时沿用当前速率, 不影响限流器使用
+     */
+    private void load(String key) {
+        RateDefinition definition;
+        try {
+            definition = rateDefinitionTemplate.opsForValue().get(RATE_KEY_PREFIX + key);
+        } catch (DataAccessException e) {
+            logger.warn("load rate of {} failed, keep current rate", key, e);
+            return;
+        }
+        if (definition != null) {
+            apply(definition);
+        }
+    }
+
+    private void apply(RateDefinition definition) {
+        RateLimiter rateLimiter = limiters.get(definition.getKey());
+        if (rateLimiter == null) {
+            return;
+        }
+        if (rateLimiter.applyRate(definition.getPermitsPerSecond(), definition.getVersion())) {
+            logger.info("apply {}", definition);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * 等待令牌的 sleep, 事件的持续时间就是实际 sleep 的时间
+ */
+@Name("com.remcarpediem.limiter.Sleep")
+@Label("Rate Limiter Sleep")
+@Category("Rate Limiter")
+@Description("Thread sleeping for permits of a rate limiter")
+public class RateLimiterSleepEvent extends jdk.jfr.Event {
+    @Label("Key")
+    String key;
+
+    @Label("Requested")
+    @Description("Sleep time returned by the rate limiter")
+    @Timespan(Timespan.MICROSECONDS)
+    long requestedMicros;
+}
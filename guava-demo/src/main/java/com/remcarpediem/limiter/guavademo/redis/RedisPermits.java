@@ -1,29 +1,40 @@
 package com.remcarpediem.limiter.guavademo.redis;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
 import java.util.concurrent.TimeUnit;
 
-public abstract class RedisPermits {
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RedisPermits {
     private double maxPermits;
     private double storedPermits;
-    private Long intervalMillis;
-    private Long nextFreeTicketMicros = 0L;
+    private long nextFreeTicketMicros;
+    /**
+     * 每次写入加一, 用于比较写入
+     */
+    private long version;
+
+    public RedisPermits() {
+    }
 
+    public RedisPermits(long nextFreeTicketMicros) {
+        this.nextFreeTicketMicros = nextFreeTicketMicros;
+    }
 
-    public RedisPermits(Long permitsPerSecond, Integer maxBurstSeconds, Long nextFreeTicketMillis) {
-        this.maxPermits = (permitsPerSecond * maxBurstSeconds);
-        this.storedPermits = permitsPerSecond;
-        this.intervalMillis =  new Double(TimeUnit.SECONDS.toMillis(1) / (permitsPerSecond * 1.0)).longValue();
-        this.nextFreeTicketMicros = nextFreeTicketMillis;
+    public RedisPermits(RedisPermits other) {
+        this.maxPermits = other.maxPermits;
+        this.storedPermits = other.storedPermits;
+        this.nextFreeTicketMicros = other.nextFreeTicketMicros;
+        this.version = other.version;
     }
 
-    public Long expires() {
-        long now = System.currentTimeMillis();
-        return 2 * TimeUnit.MINUTES.toSeconds(1) + TimeUnit.MILLISECONDS.toSeconds(Math.max(nextFreeTicketMicros, now) - now);
+    public long expires(long nowMicros) {
+        return 2 * TimeUnit.MINUTES.toSeconds(1) + TimeUnit.MICROSECONDS.toSeconds(Math.max(nextFreeTicketMicros, nowMicros) - nowMicros);
     }
 
-    public Boolean reSync(Long nowMicros) {
+    public boolean reSync(long nowMicros, double coolDownIntervalMicros) {
         if (nowMicros > nextFreeTicketMicros) {
-            double newPermits =  (nowMicros - nextFreeTicketMicros) / coolDownIntervalMicros();
+            double newPermits =  (nowMicros - nextFreeTicketMicros) / coolDownIntervalMicros;
             storedPermits = Math.min(maxPermits, storedPermits + newPermits);
             nextFreeTicketMicros = nowMicros;
             return true;
@@ -31,8 +42,6 @@ public abstract class RedisPermits {
         return false;
     }
 
-    abstract double coolDownIntervalMicros();
-
 
     public double getMaxPermits() {
         return maxPermits;
@@ -50,19 +59,19 @@ public abstract class RedisPermits {
         this.storedPermits = storedPermits;
     }
 
-    public double getIntervalMillis() {
-        return intervalMillis;
+    public long getNextFreeTicketMicros() {
+        return nextFreeTicketMicros;
     }
 
-    public void setIntervalMillis(Long intervalMillis) {
-        this.intervalMillis = intervalMillis;
+    public void setNextFreeTicketMicros(long nextFreeTicketMicros) {
+        this.nextFreeTicketMicros = nextFreeTicketMicros;
     }
 
-    public long getNextFreeTicketMicros() {
-        return nextFreeTicketMicros;
+    public long getVersion() {
+        return version;
     }
 
-    public void setNextFreeTicketMicros(Long nextFreeTicketMicros) {
-        this.nextFreeTicketMicros = nextFreeTicketMicros;
+    public void setVersion(long version) {
+        this.version = version;
     }
 }
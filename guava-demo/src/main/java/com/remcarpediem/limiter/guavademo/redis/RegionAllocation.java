@@ -0,0 +1,89 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 全局速率在各区域之间的一次分配, 同时保留上一次分配. 区域使用两次分配中较小的份额,
+ * 份额增加要等下一次分配才生效, 此时其他区域都已经应用了减少的份额, 各区域合计不超过全局速率
+ */
+public final class RegionAllocation {
+    private final long version;
+    private final long createdMillis;
+    private final Map<String, Double> shares;
+    private final Map<String, Double> previousShares;
+
+    public RegionAllocation(long version, long createdMillis, Map<String, Double> shares, Map<String, Double> previousShares) {
+        this.version = version;
+        this.createdMillis = createdMillis;
+        this.shares = Collections.unmodifiableMap(new HashMap<>(shares));
+        this.previousShares = Collections.unmodifiableMap(new HashMap<>(previousShares));
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    public Map<String, Double> getShares() {
+        return shares;
+    }
+
+    /**
+     * 区域当前可以使用的份额, 两次分配中都没有该区域时返回 NaN
+     */
+    public double effectiveShare(String region) {
+        Double current = shares.get(region);
+        Double previous = previousShares.get(region);
+        if (current == null || previous == null) {
+            return current == null ? (previous == null ? Double.NaN : previous) : current;
+        }
+        return Math.min(current, previous);
+    }
+
+    /**
+     * 按需求分配下一次的份额
+     */
+    public RegionAllocation next(long nowMillis, double globalPermitsPerSecond, Map<String, Double> demands, double minShareFraction) {
+        return new RegionAllocation(version + 1, nowMillis, allocate(globalPermitsPerSecond, demands, minShareFraction), shares);
+    }
+
+    /**
+     * 每个区域先得到 minShareFraction 平分的保底份额, 剩下的按需求从小到大注水式分配,
+     * 需求小的区域拿满需求, 需求大的区域平分余下的部分. 需求都满足后剩余的速率平均分给所有区域, 合计等于全局速率
+     * @param demands 各区域最近观察到的需求, 每秒令牌数
+     */
+    static Map<String, Double> allocate(double globalPermitsPerSecond, Map<String, Double> demands, double minShareFraction) {
+        checkArgument(minShareFraction >= 0.0 && minShareFraction <= 1.0, "minShareFraction (%s) must be in [0, 1]", minShareFraction);
+        Map<String, Double> shares = new HashMap<>();
+        int regions = demands.size();
+        if (regions == 0) {
+            return shares;
+        }
+        double floor = globalPermitsPerSecond * minShareFraction / regions;
+        double remaining = globalPermitsPerSecond - floor * regions;
+        List<Map.Entry<String, Double>> byDemand = new ArrayList<>(demands.entrySet());
+        byDemand.sort(Comparator.comparingDouble(Map.Entry::getValue));
+        int left = regions;
+        for (Map.Entry<String, Double> entry : byDemand) {
+            double extra = Math.min(Math.max(entry.getValue() - floor, 0.0), remaining / left);
+            shares.put(entry.getKey(), floor + extra);
+            remaining -= extra;
+            left--;
+        }
+        if (remaining > 0.0) {
+            double spare = remaining / regions;
+            shares.replaceAll((region, share) -> share + spare);
+        }
+        return shares;
+    }
+}
@@ -0,0 +1,150 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 一个区域持有全局速率的一部分. acquire 只访问本区域的令牌桶, 每个周期把观察到的需求写入 {@link DemandExchange},
+ * 分配超过一个周期时由先到的区域按需求重新分配, 各区域按 {@link RegionAllocation#effectiveShare} 调整本地速率.
+ * 每个区域每个周期至少调用一次 {@link #rebalance()} 时, 各区域的速率合计不超过全局速率.
+ * 区域错过了不止一次分配时, 不知道被跳过的份额, 这一周期只用保底份额和新份额中较小的.
+ * 创建时 rateLimiter 的速率应为全局速率按区域数平分的值
+ */
+public class RegionalRateLimiter {
+    private Logger logger = LoggerFactory.getLogger(RegionalRateLimiter.class.getName());
+
+    private final String region;
+    private final RateLimiter rateLimiter;
+    private final DemandExchange demandExchange;
+    private final double globalPermitsPerSecond;
+    private final double minShareFraction;
+    private final long intervalMillis;
+    private final Ticker ticker;
+    private final LongAdder requested = new LongAdder();
+    private long lastRebalanceMillis;
+    /**
+     * 上次应用的分配版本号, 还没有应用过时为 -1
+     */
+    private long lastAppliedVersion = -1L;
+    private ScheduledExecutorService scheduler;
+
+    public RegionalRateLimiter(String region, RateLimiter rateLimiter, DemandExchange demandExchange,
+                               double globalPermitsPerSecond, double minShareFraction, long interval, TimeUnit unit) {
+        this(region, rateLimiter, demandExchange, globalPermitsPerSecond, minShareFraction, interval, unit, Quota.WALL_CLOCK);
+    }
+
+    RegionalRateLimiter(String region, RateLimiter rateLimiter, DemandExchange demandExchange,
+                        double globalPermitsPerSecond, double minShareFraction, long interval, TimeUnit unit, Ticker ticker) {
+        this.region = checkNotNull(region);
+        this.rateLimiter = checkNotNull(rateLimiter);
+        this.demandExchange = checkNotNull(demandExchange);
+        this.globalPermitsPerSecond = globalPermitsPerSecond;
+        this.minShareFraction = minShareFraction;
+        this.intervalMillis = unit.toMillis(interval);
+        this.ticker = checkNotNull(ticker);
+        this.lastRebalanceMillis = now();
+        // 先登记本区域, 第一次分配时按全部区域平分
+        demandExchange.publishDemand(region, 0.0);
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    /**
+     * 本区域当前的份额
+     */
+    public double getShare() {
+        return rateLimiter.getRate();
+    }
+
+    public double acquire(int permits) {
+        requested.add(permits);
+        return rateLimiter.acquire(permits);
+    }
+
+    public Boolean tryAcquire(int permits, long timeout, TimeUnit timeUnit) {
+        requested.add(permits);
+        return rateLimiter.tryAcquire(permits, timeout, timeUnit);
+    }
+
+    public synchronized void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("region-rebalance-" + region + "-%d").setDaemon(true).build());
+        // 按固定频率, 重新分配本身的耗时不会让周期越来越长
+        scheduler.scheduleAtFixedRate(this::rebalance, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * 发布本区域的需求, 必要时重新分配, 再应用本区域的份额. 交换失败时沿用当前份额
+     */
+    public synchronized void rebalance() {
+        try {
+            long nowMillis = now();
+            double elapsedSeconds = Math.max(nowMillis - lastRebalanceMillis, 1L) / 1000.0;
+            lastRebalanceMillis = nowMillis;
+            demandExchange.publishDemand(region, requested.sumThenReset() / elapsedSeconds);
+
+            RegionAllocation allocation = demandExchange.allocation();
+            if (allocation == null || nowMillis - allocation.getCreatedMillis() >= intervalMillis) {
+                Map<String, Double> demands = demandExchange.demands();
+                RegionAllocation base = allocation == null ? initial(nowMillis, demands) : allocation;
+                demandExchange.compareAndSetAllocation(base.getVersion(),
+                        base.next(nowMillis, globalPermitsPerSecond, demands, minShareFraction));
+                allocation = demandExchange.allocation();
+            }
+            double share = allocation.effectiveShare(region);
+            // effectiveShare 已经取了上一次分配中的份额, 跳过更多次分配时退回保底份额
+            if (lastAppliedVersion >= 0 && allocation.getVersion() > lastAppliedVersion + 2) {
+                share = holdFloor(share, allocation);
+            }
+            lastAppliedVersion = allocation.getVersion();
+            if (!Double.isNaN(share) && share > 0.0 && share != rateLimiter.getRate()) {
+                rateLimiter.setRate(share);
+                logger.info("region {} share {} of {} in allocation {}", region, share, globalPermitsPerSecond, allocation.getVersion());
+            }
+        } catch (RuntimeException e) {
+            logger.warn("rebalance of region {} failed, keep current share", region, e);
+        }
+    }
+
+    /**
+     * 保底份额为 0 时无法设置为 0 速率, 沿用新份额
+     */
+    private double holdFloor(double share, RegionAllocation allocation) {
+        double floor = globalPermitsPerSecond * minShareFraction / allocation.getShares().size();
+        return floor > 0.0 ? Math.min(share, floor) : share;
+    }
+
+    /**
+     * 还没有分配时, 视为各区域平分全局速率
+     */
+    private RegionAllocation initial(long nowMillis, Map<String, Double> demands) {
+        Map<String, Double> equal = new HashMap<>();
+        for (String each : demands.keySet()) {
+            equal.put(each, globalPermitsPerSecond / demands.size());
+        }
+        return new RegionAllocation(0L, nowMillis, equal, equal);
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+}
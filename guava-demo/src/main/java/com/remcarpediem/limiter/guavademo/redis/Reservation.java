@@ -0,0 +1,40 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按预估成本拿到的令牌. 调用结束知道实际成本后 {@link #settle(int)} 一次,
+ * 多用的令牌从令牌桶补扣, 少用的退回. 预定和结算是两次独立的令牌桶读写, 调用期间不持有锁
+ */
+public final class Reservation {
+    private final RateLimiter rateLimiter;
+    private final int estimatedPermits;
+    private final long microsWaited;
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    Reservation(RateLimiter rateLimiter, int estimatedPermits, long microsWaited) {
+        this.rateLimiter = rateLimiter;
+        this.estimatedPermits = estimatedPermits;
+        this.microsWaited = microsWaited;
+    }
+
+    public int getEstimatedPermits() {
+        return estimatedPermits;
+    }
+
+    public long getMicrosWaited() {
+        return microsWaited;
+    }
+
+    /**
+     * 按实际成本结算, 只能调用一次
+     * @param actualPermits 实际消耗的令牌数, 可以为 0
+     */
+    public void settle(int actualPermits) {
+        Preconditions.checkArgument(actualPermits >= 0, "Actual permits (%s) must not be negative", actualPermits);
+        Preconditions.checkState(settled.compareAndSet(false, true), "Reservation already settled");
+        rateLimiter.settle(actualPermits - estimatedPermits);
+    }
+}
@@ -0,0 +1,103 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 合并同一个限流器上并发的预定请求. 请求先进入队列, 抢到合并权的线程把队列里的请求一次取出,
+ * 在同一次令牌桶读写中按到达顺序依次预定, 再把各自的等待时间交给对应的线程.
+ * 热点 key 上每一批请求只需要访问一次存储, 批次大小随存储的延迟自动变化.
+ * 等待的线程不轮询, 由合并线程发布结果后唤醒; 合并线程释放合并权后唤醒队首的线程, 由它合并之后到达的请求.
+ */
+final class ReservationCoalescer {
+    private final RateLimiter rateLimiter;
+    private final ConcurrentLinkedQueue<Waiter> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean combining = new AtomicBoolean();
+
+    ReservationCoalescer(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * 调用方的中断标记在等待期间清除, 返回前恢复, 否则 park 会立即返回, 变成空转
+     */
+    long reserve(int permits) {
+        Waiter waiter = new Waiter(permits);
+        queue.add(waiter);
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (!waiter.done) {
+                if (combining.compareAndSet(false, true)) {
+                    try {
+                        combine();
+                    } finally {
+                        combining.set(false);
+                    }
+                    Waiter next = queue.peek();
+                    if (next != null) {
+                        LockSupport.unpark(next.thread);
+                    }
+                } else {
+                    // 抢不到合并权说明有线程正在合并, 它释放合并权后会唤醒队首的线程, 不会丢失唤醒
+                    LockSupport.park(this);
+                    interrupted |= Thread.interrupted();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (waiter.failure instanceof Error) {
+            throw (Error) waiter.failure;
+        }
+        if (waiter.failure != null) {
+            throw (RuntimeException) waiter.failure;
+        }
+        return waiter.waitMicros;
+    }
+
+    private void combine() {
+        List<Waiter> batch = new ArrayList<>();
+        Waiter waiter;
+        while ((waiter = queue.poll()) != null) {
+            batch.add(waiter);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            rateLimiter.update((redisPermits, nowMicros) -> {
+                for (Waiter each : batch) {
+                    each.waitMicros = rateLimiter.reserveAndGetWaitLength(redisPermits, each.permits, nowMicros);
+                }
+                return 0L;
+            });
+        } catch (RuntimeException | Error e) {
+            // Error 也要交给这一批的每个线程, 否则它们会一直等待
+            for (Waiter each : batch) {
+                each.failure = e;
+            }
+        } finally {
+            for (Waiter each : batch) {
+                each.done = true;
+                LockSupport.unpark(each.thread);
+            }
+        }
+    }
+
+    private static final class Waiter {
+        final int permits;
+        final Thread thread = Thread.currentThread();
+        long waitMicros;
+        Throwable failure;
+        volatile boolean done;
+
+        Waiter(int permits) {
+            this.permits = permits;
+        }
+    }
+}
@@ -7,6 +7,7 @@ package com.remcarpediem.limiter.guavademo.redis;
 import com.google.common.math.LongMath;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 /**
  *
@@ -17,8 +18,8 @@ abstract class SmoothRateLimiter extends RateLimiter {
 
     static final class SmoothWarmingUp extends SmoothRateLimiter {
         private final long warmupPeriodMicros;
-        private double slope;
-        private double thresholdPermits;
+        private volatile double slope;
+        private volatile double thresholdPermits;
         private double coldFactor;
 
         SmoothWarmingUp(
@@ -28,9 +29,17 @@ abstract class SmoothRateLimiter extends RateLimiter {
             this.coldFactor = coldFactor;
         }
 
+        SmoothWarmingUp(
+                SleepingStopwatch stopwatch, String key, PermitsStore permitsStore, Lock lock,
+                long warmupPeriod, TimeUnit timeUnit, double coldFactor) {
+            super(stopwatch, key, permitsStore, lock);
+            this.warmupPeriodMicros = timeUnit.toMicros(warmupPeriod);
+            this.coldFactor = coldFactor;
+        }
+
         @Override
         long storedPermitsToWaitTime(double storedPermits, double permitsToTake) {
-            double availablePermitsAboveThreshold = redisPermits.getStoredPermits() - thresholdPermits;
+            double availablePermitsAboveThreshold = storedPermits - thresholdPermits;
             long micros = 0;
             if (availablePermitsAboveThreshold > 0.0) {
                 double permitsAboveThresholdToTake = Math.min(availablePermitsAboveThreshold, permitsToTake);
@@ -42,17 +51,30 @@ abstract class SmoothRateLimiter extends RateLimiter {
             micros += (long) (stableIntervalMicros * permitsToTake);
             return micros;
         }
+        @Override
+        PartialGrantRequest partialGrantRequest(int maxPermits, long nowMicros) {
+            return new PartialGrantRequest(maxPermits, nowMicros, stableIntervalMicros, warmupPeriodMicros,
+                    thresholdPermits, slope, stableIntervalMicros);
+        }
+
+        /**
+         * 存储的令牌越多越冷, 退回的令牌放回存储会让已经预热的限流器重新变慢, 所以直接丢弃
+         */
+        @Override
+        void storeRefundedPermits(RedisPermits redisPermits, double permits) {
+        }
+
         private double permitsToTime(double permits) {
             return stableIntervalMicros + permits * slope;
         }
 
         @Override
-        double coolDownIntervalMicros() {
+        double coolDownIntervalMicros(RedisPermits redisPermits) {
             return warmupPeriodMicros / redisPermits.getMaxPermits();
         }
 
         @Override
-        void doSetRate(double permitsPerSecond, double stableIntervalMicros) {
+        void doSetRate(RedisPermits redisPermits, double permitsPerSecond, double stableIntervalMicros) {
             double oldMaxPermits = redisPermits.getMaxPermits();
             double coldIntervalMicros = stableIntervalMicros * coldFactor;
             thresholdPermits = 0.5 * warmupPeriodMicros / stableIntervalMicros;
@@ -75,8 +97,13 @@ abstract class SmoothRateLimiter extends RateLimiter {
             this.maxBurstSeconds = maxBurstSeconds;
         }
 
+        SmoothBursty(SleepingStopwatch stopwatch, String key, PermitsStore permitsStore, Lock lock, double maxBurstSeconds) {
+            super(stopwatch, key, permitsStore, lock);
+            this.maxBurstSeconds = maxBurstSeconds;
+        }
+
         @Override
-        void doSetRate(double permitsPerSecond, double stableIntervalMicros) {
+        void doSetRate(RedisPermits redisPermits, double permitsPerSecond, double stableIntervalMicros) {
             double oldMaxPermits = redisPermits.getMaxPermits();
             redisPermits.setMaxPermits(maxBurstSeconds * permitsPerSecond);
             if (oldMaxPermits == Double.POSITIVE_INFINITY) {
@@ -92,24 +119,39 @@ abstract class SmoothRateLimiter extends RateLimiter {
         }
 
         @Override
-        double coolDownIntervalMicros() {
+        double coolDownIntervalMicros(RedisPermits redisPermits) {
             return stableIntervalMicros;
         }
+
+        @Override
+        PartialGrantRequest partialGrantRequest(int maxPermits, long nowMicros) {
+            return new PartialGrantRequest(maxPermits, nowMicros, stableIntervalMicros, 0L,
+                    Double.MAX_VALUE, 0.0, 0.0);
+        }
+
+        @Override
+        void storeRefundedPermits(RedisPermits redisPermits, double permits) {
+            redisPermits.setStoredPermits(Math.min(redisPermits.getMaxPermits(), redisPermits.getStoredPermits() + permits));
+        }
     }
 
     public SmoothRateLimiter(SleepingStopwatch stopwatch) {
         super(stopwatch);
     }
 
+    SmoothRateLimiter(SleepingStopwatch stopwatch, String key, PermitsStore permitsStore, Lock lock) {
+        super(stopwatch, key, permitsStore, lock);
+    }
+
     @Override
-    void doSetRate(double permitsPerSecond, long nowMicros) {
-        redisPermits.reSync(nowMicros);
+    void doSetRate(RedisPermits redisPermits, double permitsPerSecond, long nowMicros) {
+        redisPermits.reSync(nowMicros, coolDownIntervalMicros(redisPermits));
         double stableIntervalMicros = TimeUnit.SECONDS.toMicros(1L) / permitsPerSecond;
         this.stableIntervalMicros = stableIntervalMicros;
-        doSetRate(permitsPerSecond, stableIntervalMicros);
+        doSetRate(redisPermits, permitsPerSecond, stableIntervalMicros);
     }
 
-    abstract void doSetRate(double permitsPerSecond, double stableIntervalMicros);
+    abstract void doSetRate(RedisPermits redisPermits, double permitsPerSecond, double stableIntervalMicros);
 
     @Override
     double doGetRate() {
@@ -117,27 +159,61 @@ abstract class SmoothRateLimiter extends RateLimiter {
     }
 
     @Override
-    long queryEarliestAvailable(long nowMicros) {
+    long queryEarliestAvailable(RedisPermits redisPermits, long nowMicros) {
         return redisPermits.getNextFreeTicketMicros();
     }
 
     @Override
-    long reserveEarliestAvailable(int permits, long nowMicros) {
-        RedisPermits curRedisPermits = this.redisPermits;
-        curRedisPermits.reSync(nowMicros);
+    long reserveEarliestAvailable(RedisPermits curRedisPermits, int permits, long nowMicros) {
+        curRedisPermits.reSync(nowMicros, coolDownIntervalMicros(curRedisPermits));
         long returnValue = curRedisPermits.getNextFreeTicketMicros();
         double storedPermitsToSpend = Math.min(permits, curRedisPermits.getStoredPermits());
 
         double freshPermits = permits - storedPermitsToSpend; // 需要等待的令牌数
 
-        long waitMicros = storedPermitsToWaitTime(curRedisPermits.getStoredPermits(), storedPermitsToSpend + (long) (freshPermits * stableIntervalMicros));
+        long waitMicros = storedPermitsToWaitTime(curRedisPermits.getStoredPermits(), storedPermitsToSpend) + (long) (freshPermits * stableIntervalMicros);
 
         curRedisPermits.setNextFreeTicketMicros(LongMath.checkedAdd(curRedisPermits.getNextFreeTicketMicros(), waitMicros));
         curRedisPermits.setStoredPermits(curRedisPermits.getStoredPermits() - storedPermitsToSpend);
-        this.redisPermits = curRedisPermits;
         return returnValue;
     }
 
+    /**
+     * 现在可以预定时, 拿存储的令牌中的整数部分, 没有存储的令牌时拿 1 个
+     */
+    @Override
+    int availablePermits(RedisPermits curRedisPermits, int maxPermits, long nowMicros) {
+        curRedisPermits.reSync(nowMicros, coolDownIntervalMicros(curRedisPermits));
+        if (curRedisPermits.getNextFreeTicketMicros() > nowMicros) {
+            return 0;
+        }
+        return (int) Math.max(1.0, Math.min(maxPermits, Math.floor(curRedisPermits.getStoredPermits())));
+    }
+
+    /**
+     * 补扣的令牌和预定一样先用存储的令牌, 不够的往后推 nextFreeTicketMicros, 由后面的请求等待.
+     * 退回的令牌先抵消还没到期的 nextFreeTicketMicros, 剩下的交给 {@link #storeRefundedPermits}
+     */
+    @Override
+    void settleEarliestAvailable(RedisPermits curRedisPermits, int permitsDelta, long nowMicros) {
+        if (permitsDelta > 0) {
+            reserveEarliestAvailable(curRedisPermits, permitsDelta, nowMicros);
+            return;
+        }
+        curRedisPermits.reSync(nowMicros, coolDownIntervalMicros(curRedisPermits));
+        double refundPermits = -permitsDelta;
+        long owedMicros = curRedisPermits.getNextFreeTicketMicros() - nowMicros;
+        long refundMicros = (long) Math.min(refundPermits * stableIntervalMicros, owedMicros);
+        curRedisPermits.setNextFreeTicketMicros(curRedisPermits.getNextFreeTicketMicros() - refundMicros);
+        storeRefundedPermits(curRedisPermits, refundPermits - refundMicros / stableIntervalMicros);
+    }
+
+    /**
+     * 抵消 nextFreeTicketMicros 之后剩下的退回令牌. SmoothBursty 放回存储的令牌, 不超过 maxPermits;
+     * SmoothWarmingUp 丢弃
+     */
+    abstract void storeRefundedPermits(RedisPermits redisPermits, double permits);
+
     abstract long storedPermitsToWaitTime(double storedPermits, double permitsToTake);
-    abstract double coolDownIntervalMicros();
+    abstract double coolDownIntervalMicros(RedisPermits redisPermits);
 }
\ No newline at end of file
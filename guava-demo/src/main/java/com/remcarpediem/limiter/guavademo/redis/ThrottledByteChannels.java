@@ -0,0 +1,130 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * 按字节限速的 channel. 每次读写最多当前速率 100ms 的字节数, 读写完成后按实际字节数拿令牌
+ */
+public final class ThrottledByteChannels {
+
+    private ThrottledByteChannels() {
+    }
+
+    public static ReadableByteChannel readable(ReadableByteChannel channel, RateLimiter rateLimiter) {
+        return new ThrottledReadableByteChannel(checkNotNull(channel), new ByteThrottle(rateLimiter));
+    }
+
+    public static WritableByteChannel writable(WritableByteChannel channel, RateLimiter rateLimiter) {
+        return new ThrottledWritableByteChannel(checkNotNull(channel), new ByteThrottle(rateLimiter));
+    }
+
+    /**
+     * 限速的 {@link FileChannel#transferTo}. 分段调用 transferTo, 每段仍然由操作系统零拷贝发送,
+     * 不要把 target 包装成 {@link #writable}, 否则数据会经过用户态缓冲区
+     * @return 实际发送的字节数, target 是非阻塞的 channel 时可能小于 count
+     */
+    public static long transferTo(FileChannel source, long position, long count, WritableByteChannel target,
+                                  RateLimiter rateLimiter) throws IOException {
+        ByteThrottle throttle = new ByteThrottle(rateLimiter);
+        long transferred = 0;
+        try {
+            while (transferred < count) {
+                long n = source.transferTo(position + transferred, Math.min(count - transferred, throttle.chunkSize()), target);
+                if (n <= 0) {
+                    break;
+                }
+                throttle.acquire(n);
+                transferred += n;
+            }
+        } finally {
+            throttle.release();
+        }
+        return transferred;
+    }
+
+    /**
+     * dst 剩余空间超过一段时, 只把前一段暴露给 channel
+     */
+    private static ByteBuffer limit(ByteBuffer buffer, int chunk) {
+        if (buffer.remaining() <= chunk) {
+            return buffer;
+        }
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + chunk);
+        return slice;
+    }
+
+    private static final class ThrottledReadableByteChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+        private final ByteThrottle throttle;
+
+        ThrottledReadableByteChannel(ReadableByteChannel channel, ByteThrottle throttle) {
+            this.channel = channel;
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ByteBuffer chunk = limit(dst, throttle.chunkSize());
+            int n = channel.read(chunk);
+            if (chunk != dst) {
+                dst.position(chunk.position());
+            }
+            if (n > 0) {
+                throttle.acquire(n);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            throttle.release();
+            channel.close();
+        }
+    }
+
+    private static final class ThrottledWritableByteChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private final ByteThrottle throttle;
+
+        ThrottledWritableByteChannel(WritableByteChannel channel, ByteThrottle throttle) {
+            this.channel = channel;
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer chunk = limit(src, throttle.chunkSize());
+            int n = channel.write(chunk);
+            if (chunk != src) {
+                src.position(chunk.position());
+            }
+            if (n > 0) {
+                throttle.acquire(n);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            throttle.release();
+            channel.close();
+        }
+    }
+}
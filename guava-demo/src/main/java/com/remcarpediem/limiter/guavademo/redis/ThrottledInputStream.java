@@ -0,0 +1,50 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 按字节限速的 InputStream, 读到数据后再拿令牌, 每次最多读当前速率 100ms 的字节数
+ */
+public class ThrottledInputStream extends FilterInputStream {
+    private final ByteThrottle throttle;
+
+    public ThrottledInputStream(InputStream in, RateLimiter rateLimiter) {
+        super(in);
+        this.throttle = new ByteThrottle(rateLimiter);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            throttle.acquire(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, Math.min(len, throttle.chunkSize()));
+        if (n > 0) {
+            throttle.acquire(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, throttle.chunkSize()));
+        if (skipped > 0) {
+            throttle.acquire(skipped);
+        }
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        throttle.release();
+        super.close();
+    }
+}
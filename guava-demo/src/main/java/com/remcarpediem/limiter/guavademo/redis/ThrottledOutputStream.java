@@ -0,0 +1,40 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 按字节限速的 OutputStream, 大块数据按当前速率 100ms 的字节数分段, 每段拿到令牌后写出
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+    private final ByteThrottle throttle;
+
+    public ThrottledOutputStream(OutputStream out, RateLimiter rateLimiter) {
+        super(out);
+        this.throttle = new ByteThrottle(rateLimiter);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        throttle.acquire(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int chunk = Math.min(len, throttle.chunkSize());
+            throttle.acquire(chunk);
+            out.write(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        throttle.release();
+        super.close();
+    }
+}
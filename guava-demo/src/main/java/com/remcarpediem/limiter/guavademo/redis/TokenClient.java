@@ -0,0 +1,406 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * {@link TokenServer} 的客户端. 所有请求经过一个长连接, 发送线程把发送期间积累的请求合并成一批,
+ * 一批编码后超过 {@link TokenProtocol#MAX_FRAME_BYTES} 时拆成多帧发送,
+ * 读取线程按 batchId 把结果交给等待的调用方. 连接不可用或超时没有结果时按 {@link FallbackPolicy} 在本地判断,
+ * 超时后才到达的结果扣掉的令牌通过结算退回服务端.
+ * 断线后每隔 {@link #RECONNECT_MILLIS} 尝试重连.
+ * 等待时间是服务端计算的, 客户端收到后再 sleep, 实际等待会多出一次往返的时间
+ */
+public class TokenClient {
+
+    /**
+     * 令牌服务不可用时的处理方式
+     */
+    public enum FallbackPolicy {
+        /**
+         * 按 fallbackPermitsPerSecond 在本地限流, 一般为全局速率除以节点数
+         */
+        LOCAL,
+        /**
+         * 直接放行
+         */
+        ALLOW,
+        /**
+         * 直接拒绝, acquire 抛出 {@link RateLimitExceededException}
+         */
+        DENY
+    }
+
+    static final long RECONNECT_MILLIS = 1000;
+
+    private static final int MAX_BATCH = 512;
+
+    private static final long POLL_MILLIS = 100;
+
+    private Logger logger = LoggerFactory.getLogger(TokenClient.class.getName());
+
+    private final InetSocketAddress serverAddress;
+    private final FallbackPolicy fallbackPolicy;
+    private final double fallbackPermitsPerSecond;
+    private final long timeoutMicros;
+    private final RateLimiter.SleepingStopwatch stopwatch;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ConcurrentMap<Long, List<Pending>> inflight = new ConcurrentHashMap<>();
+    private final PermitsStore fallbackPermitsStore = new InMemoryPermitsStore();
+    private final ConcurrentMap<String, RateLimiter> fallbackLimiters = new ConcurrentHashMap<>();
+    private final ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("token-client-%d").setDaemon(true).build();
+    private volatile SocketChannel channel;
+    private volatile boolean stopped = true;
+    private long nextBatchId;
+    private long reconnectAtMillis;
+    private Thread sender;
+
+    /**
+     * @param timeout 等待服务端结果的最长时间, 超时后按 fallbackPolicy 判断
+     */
+    public TokenClient(InetSocketAddress serverAddress, FallbackPolicy fallbackPolicy, double fallbackPermitsPerSecond,
+                       long timeout, TimeUnit unit) {
+        this(serverAddress, fallbackPolicy, fallbackPermitsPerSecond, timeout, unit, RateLimiter.SleepingStopwatch.createFromSystemTimer());
+    }
+
+    TokenClient(InetSocketAddress serverAddress, FallbackPolicy fallbackPolicy, double fallbackPermitsPerSecond,
+                long timeout, TimeUnit unit, RateLimiter.SleepingStopwatch stopwatch) {
+        checkArgument(fallbackPermitsPerSecond > 0.0, "rate must be positive");
+        this.serverAddress = checkNotNull(serverAddress);
+        this.fallbackPolicy = checkNotNull(fallbackPolicy);
+        this.fallbackPermitsPerSecond = fallbackPermitsPerSecond;
+        this.timeoutMicros = unit.toMicros(timeout);
+        this.stopwatch = checkNotNull(stopwatch);
+    }
+
+    public synchronized void start() {
+        stopped = false;
+        sender = threadFactory.newThread(this::send);
+        sender.start();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (sender != null) {
+            sender.interrupt();
+            sender = null;
+        }
+        SocketChannel current = channel;
+        if (current != null) {
+            disconnect(current, null);
+        }
+    }
+
+    /**
+     * 在超时时间内可以拿到令牌时拿到令牌
+     */
+    public boolean tryAcquire(String key, int permits, long timeout, TimeUnit unit) {
+        long microsToWait = decide(key, permits, Math.max(unit.toMicros(timeout), 0));
+        if (microsToWait < 0) {
+            return false;
+        }
+        stopwatch.sleepMicrosUninterruptibly(key, microsToWait);
+        return true;
+    }
+
+    /**
+     * 拿到令牌, 必要时等待
+     * @return 等待的时间, 单位微秒
+     */
+    public long acquire(String key, int permits) {
+        long microsToWait = decide(key, permits, TokenProtocol.ACQUIRE);
+        if (microsToWait < 0) {
+            throw new RateLimitExceededException(key);
+        }
+        stopwatch.sleepMicrosUninterruptibly(key, microsToWait);
+        return microsToWait;
+    }
+
+    /**
+     * 不等待, 拿到服务端当前可用的令牌, 最多 maxPermits 个
+     * @return 拿到的令牌数, 可能为 0
+     */
+    public int tryAcquireUpTo(String key, int maxPermits) {
+        return (int) decide(key, maxPermits, TokenProtocol.UP_TO);
+    }
+
+    /**
+     * 在服务端补扣或退回令牌
+     * @param permitsDelta 正数补扣, 负数退回
+     */
+    void settle(String key, int permitsDelta) {
+        if (permitsDelta != 0) {
+            decide(key, permitsDelta, TokenProtocol.SETTLE);
+        }
+    }
+
+    /**
+     * 交给发送线程, 等待服务端的结果
+     * @param requestTimeoutMicros 见 {@link TokenProtocol}, 也用来区分 acquire, tryAcquireUpTo 和结算
+     * @return acquire 和 tryAcquire 为需要等待的时间, 拿不到令牌时返回 -1; tryAcquireUpTo 为拿到的令牌数; 结算为 0
+     */
+    long decide(String key, int permits, long requestTimeoutMicros) {
+        checkArgument(permits > 0 || requestTimeoutMicros == TokenProtocol.SETTLE,
+                "Requested permits (%s) must be positive", permits);
+        Pending pending = new Pending(key, permits, requestTimeoutMicros);
+        checkArgument(pending.keyBytes.length <= TokenProtocol.MAX_KEY_BYTES, "key too long");
+        if (stopped || !queue.offer(pending)) {
+            return fallback(pending);
+        }
+        try {
+            return pending.result.get(timeoutMicros, TimeUnit.MICROSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel(pending);
+            return fallback(pending);
+        } catch (TimeoutException e) {
+            cancel(pending);
+            return fallback(pending);
+        } catch (ExecutionException e) {
+            return fallback(pending);
+        }
+    }
+
+    /**
+     * 放弃等待服务端的结果. 还没发出的请求直接从队列中删除, 服务端不会扣令牌; 已经发出的请求标记为取消,
+     * 服务端可能已经扣了令牌, 结果到达时由 {@link #receive} 发送结算请求退回.
+     * 连接在结果到达前断开时这部分令牌不会退回, 服务端会多扣一次
+     */
+    private void cancel(Pending pending) {
+        if (!queue.remove(pending)) {
+            pending.result.cancel(false);
+        }
+    }
+
+    private long fallback(TokenProtocol.Decision decision) {
+        boolean upTo = decision.timeoutMicros == TokenProtocol.UP_TO;
+        boolean settle = decision.timeoutMicros == TokenProtocol.SETTLE;
+        switch (fallbackPolicy) {
+            case ALLOW:
+                return upTo ? decision.permits : 0L;
+            case DENY:
+                return upTo || settle ? 0L : TokenProtocol.REJECTED;
+            default:
+                RateLimiter rateLimiter = fallbackLimiters.computeIfAbsent(decision.key, key ->
+                        RateLimiter.create(fallbackPermitsPerSecond, stopwatch, key, fallbackPermitsStore, null));
+                if (settle) {
+                    rateLimiter.settle(decision.permits);
+                    return 0L;
+                }
+                if (upTo) {
+                    return rateLimiter.tryAcquireUpTo(decision.permits);
+                }
+                return decision.timeoutMicros < 0
+                        ? rateLimiter.reserve(decision.permits)
+                        : rateLimiter.tryReserve(decision.permits, decision.timeoutMicros);
+        }
+    }
+
+    /**
+     * 发送线程, 每次把队列中积累的请求作为一批发出
+     */
+    private void send() {
+        List<Pending> drained = new ArrayList<>();
+        while (!stopped) {
+            try {
+                Pending first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                drained = new ArrayList<>();
+                drained.add(first);
+                queue.drainTo(drained, MAX_BATCH - 1);
+            } catch (InterruptedException e) {
+                break;
+            }
+            for (List<Pending> batch : TokenProtocol.splitRequests(drained)) {
+                try {
+                    send(batch);
+                } catch (RuntimeException e) {
+                    logger.warn("send {} token requests failed, fallback {}", batch.size(), fallbackPolicy, e);
+                    inflight.remove(batch.get(0).batchId, batch);
+                    fail(batch, e);
+                }
+            }
+        }
+        queue.drainTo(drained);
+        fail(drained, new IOException("token client stopped"));
+    }
+
+    /**
+     * 把一批请求作为一帧发出, 连接不可用或写入失败时这一批按失败处理
+     */
+    private void send(List<Pending> batch) {
+        SocketChannel current = connect();
+        if (current == null) {
+            fail(batch, new IOException("token server " + serverAddress + " unavailable"));
+            return;
+        }
+        long batchId = nextBatchId++;
+        for (Pending pending : batch) {
+            pending.batchId = batchId;
+        }
+        inflight.put(batchId, batch);
+        try {
+            ByteBuffer frame = TokenProtocol.encodeRequest(batchId, batch);
+            while (frame.hasRemaining()) {
+                current.write(frame);
+            }
+        } catch (IOException e) {
+            disconnect(current, e);
+            List<Pending> unsent = inflight.remove(batchId);
+            if (unsent != null) {
+                fail(unsent, e);
+            }
+        }
+    }
+
+    /**
+     * 读取线程, 连接断开时退出
+     */
+    private void receive(SocketChannel current) {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                header.clear();
+                readFully(current, header);
+                int length = header.getInt(0);
+                checkArgument(length >= 12 && length <= TokenProtocol.MAX_FRAME_BYTES, "invalid frame length %s", length);
+                ByteBuffer frame = ByteBuffer.allocate(length);
+                readFully(current, frame);
+                frame.flip();
+                List<Pending> batch = inflight.remove(frame.getLong());
+                int count = frame.getInt();
+                for (int i = 0; batch != null && i < count && i < batch.size(); i++) {
+                    Pending pending = batch.get(i);
+                    long result = frame.getLong();
+                    if (!pending.result.complete(result)) {
+                        refund(pending, result);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            disconnect(current, e);
+        }
+    }
+
+    /**
+     * 调用方已经放弃等待并在本地判断过, 服务端扣掉的令牌通过结算退回, 不等待结果
+     */
+    private void refund(Pending pending, long result) {
+        long charged;
+        if (pending.timeoutMicros == TokenProtocol.SETTLE) {
+            charged = 0L;
+        } else if (pending.timeoutMicros == TokenProtocol.UP_TO) {
+            charged = result;
+        } else {
+            charged = result < 0 ? 0L : pending.permits;
+        }
+        if (charged > 0 && !stopped) {
+            queue.offer(new Pending(pending.key, (int) -charged, TokenProtocol.SETTLE));
+        }
+    }
+
+    private static void readFully(SocketChannel current, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (current.read(buffer) < 0) {
+                throw new IOException("connection closed by token server");
+            }
+        }
+    }
+
+    /**
+     * 只在发送线程上调用, 没有连接时按间隔重连
+     */
+    private SocketChannel connect() {
+        SocketChannel current = channel;
+        if (current != null) {
+            return current;
+        }
+        long nowMillis = System.currentTimeMillis();
+        if (nowMillis < reconnectAtMillis) {
+            return null;
+        }
+        try {
+            current = SocketChannel.open();
+            current.socket().setTcpNoDelay(true);
+            current.socket().connect(serverAddress, (int) Math.max(TimeUnit.MICROSECONDS.toMillis(timeoutMicros), 1L));
+        } catch (IOException e) {
+            logger.warn("connect token server {} failed, fallback {}", serverAddress, fallbackPolicy, e);
+            closeQuietly(current);
+            reconnectAtMillis = nowMillis + RECONNECT_MILLIS;
+            return null;
+        }
+        channel = current;
+        SocketChannel connected = current;
+        threadFactory.newThread(() -> receive(connected)).start();
+        return current;
+    }
+
+    private synchronized void disconnect(SocketChannel current, Exception cause) {
+        if (channel == current) {
+            channel = null;
+            reconnectAtMillis = System.currentTimeMillis() + RECONNECT_MILLIS;
+            if (cause != null && !stopped) {
+                logger.warn("token server {} disconnected, fallback {}", serverAddress, fallbackPolicy, cause);
+            }
+            IOException failure = new IOException("token server " + serverAddress + " disconnected", cause);
+            for (Long batchId : new ArrayList<>(inflight.keySet())) {
+                List<Pending> batch = inflight.remove(batchId);
+                if (batch != null) {
+                    fail(batch, failure);
+                }
+            }
+        }
+        closeQuietly(current);
+    }
+
+    private static void fail(List<Pending> batch, Exception cause) {
+        for (Pending pending : batch) {
+            pending.result.completeExceptionally(cause);
+        }
+    }
+
+    private void closeQuietly(SocketChannel current) {
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (IOException e) {
+            logger.warn("close token connection failed", e);
+        }
+    }
+
+    private static final class Pending extends TokenProtocol.Decision {
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        /**
+         * 只在发送线程上读写
+         */
+        long batchId = -1L;
+
+        Pending(String key, int permits, long timeoutMicros) {
+            super(key, permits, timeoutMicros);
+        }
+    }
+}
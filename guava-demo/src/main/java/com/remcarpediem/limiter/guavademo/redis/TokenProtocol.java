@@ -0,0 +1,136 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link TokenServer} 和 {@link TokenClient} 之间的二进制协议, 大端字节序. 每帧以 4 字节的长度开头, 长度不含自身.
+ * 请求帧: long batchId, int count, 然后 count 个 {short keyLength, key 的 UTF-8 字节, int permits, long timeoutMicros}.
+ * timeoutMicros 为 {@link #ACQUIRE} 时按 acquire 预定, 为 {@link #UP_TO} 时按 tryAcquireUpTo 拿最多 permits 个令牌,
+ * 为 {@link #SETTLE} 时补扣 (permits 为正) 或退回 (permits 为负) 令牌, 不小于 0 时按 tryAcquire 判断.
+ * 响应帧: long batchId, int count, 然后按请求顺序 count 个 long. acquire 和 tryAcquire 为等待时间, 拿不到令牌时为 -1,
+ * tryAcquireUpTo 为拿到的令牌数, 结算为 0
+ */
+final class TokenProtocol {
+    static final int MAX_FRAME_BYTES = 1 << 20;
+
+    static final int MAX_KEY_BYTES = Short.MAX_VALUE;
+
+    /**
+     * 请求帧中 batchId 和 count 的长度
+     */
+    static final int REQUEST_HEADER_BYTES = 8 + 4;
+
+    static final long ACQUIRE = -1L;
+
+    static final long UP_TO = -2L;
+
+    static final long SETTLE = -3L;
+
+    static final long REJECTED = -1L;
+
+    private TokenProtocol() {
+    }
+
+    /**
+     * 一个待判断的请求
+     */
+    static class Decision {
+        final String key;
+        final byte[] keyBytes;
+        final int permits;
+        final long timeoutMicros;
+
+        Decision(String key, int permits, long timeoutMicros) {
+            this.key = key;
+            this.keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            this.permits = permits;
+            this.timeoutMicros = timeoutMicros;
+        }
+
+        int encodedLength() {
+            return 2 + keyBytes.length + 4 + 8;
+        }
+    }
+
+    /**
+     * 按编码后的长度把请求分成多批, 每批的请求帧都不超过 {@link #MAX_FRAME_BYTES}, 保持原来的顺序
+     */
+    static <T extends Decision> List<List<T>> splitRequests(List<T> decisions) {
+        List<List<T>> batches = new ArrayList<>();
+        List<T> batch = new ArrayList<>();
+        int length = REQUEST_HEADER_BYTES;
+        for (T decision : decisions) {
+            if (!batch.isEmpty() && length + decision.encodedLength() > MAX_FRAME_BYTES) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                length = REQUEST_HEADER_BYTES;
+            }
+            batch.add(decision);
+            length += decision.encodedLength();
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    static ByteBuffer encodeRequest(long batchId, List<? extends Decision> decisions) {
+        int length = REQUEST_HEADER_BYTES;
+        for (Decision decision : decisions) {
+            length += decision.encodedLength();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length).putLong(batchId).putInt(decisions.size());
+        for (Decision decision : decisions) {
+            buffer.putShort((short) decision.keyBytes.length).put(decision.keyBytes)
+                    .putInt(decision.permits).putLong(decision.timeoutMicros);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 从 frame 中读出请求, frame 的位置在 batchId 处
+     */
+    static Decision decodeDecision(ByteBuffer frame) {
+        byte[] keyBytes = new byte[frame.getShort() & 0xFFFF];
+        frame.get(keyBytes);
+        return new Decision(new String(keyBytes, StandardCharsets.UTF_8), frame.getInt(), frame.getLong());
+    }
+
+    static void encodeResponse(ByteBuffer buffer, long batchId, long[] waitMicros) {
+        buffer.putInt(8 + 4 + 8 * waitMicros.length).putLong(batchId).putInt(waitMicros.length);
+        for (long each : waitMicros) {
+            buffer.putLong(each);
+        }
+    }
+
+    static int responseLength(int count) {
+        return 4 + 8 + 4 + 8 * count;
+    }
+
+    /**
+     * buffer 处于读模式时, 开头是否已经有一个完整的帧
+     * @return 完整帧的长度(不含长度字段), 不完整时返回 -1
+     */
+    static int completeFrameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 12 || length > MAX_FRAME_BYTES) {
+            throw new IllegalStateException("invalid frame length " + length);
+        }
+        return buffer.remaining() - 4 >= length ? length : -1;
+    }
+
+    /**
+     * buffer 处于写模式时, 开头的帧一共需要的字节数, 用于扩大缓冲区. 长度字段还没读全时返回 0
+     */
+    static int pendingFrameBytes(ByteBuffer buffer) {
+        return buffer.position() < 4 ? 0 : 4 + buffer.getInt(0);
+    }
+}
@@ -0,0 +1,292 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * 独立的令牌服务, 令牌桶保存在服务进程的内存中, 每个 key 一个 {@link SmoothRateLimiter}.
+ * 客户端通过 {@link TokenClient} 建立长连接, 按 {@link TokenProtocol} 批量发送请求,
+ * 服务端只在一个 selector 线程上判断, 令牌桶不需要加锁, 返回需要等待的时间, 由客户端 sleep.
+ * 绑定端口 0 时使用随机端口, 可以在测试进程内启动.
+ * 设置了 {@link RateLimiterRegistry} 时各 key 的速率以注册中心发布的配置为准
+ */
+public class TokenServer {
+    private Logger logger = LoggerFactory.getLogger(TokenServer.class.getName());
+
+    private final InetSocketAddress bindAddress;
+    private final double defaultPermitsPerSecond;
+    private final RateLimiter.SleepingStopwatch stopwatch;
+    private final PermitsStore permitsStore = new InMemoryPermitsStore();
+    private final ConcurrentMap<String, Double> rates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean stopping;
+    private volatile RateLimiterRegistry rateLimiterRegistry;
+    private volatile ExecutorService registrar;
+
+    /**
+     * @param defaultPermitsPerSecond 没有通过 {@link #setRate} 配置速率的 key 使用的速率
+     */
+    public TokenServer(InetSocketAddress bindAddress, double defaultPermitsPerSecond) {
+        this(bindAddress, defaultPermitsPerSecond, RateLimiter.SleepingStopwatch.createFromSystemTimer());
+    }
+
+    TokenServer(InetSocketAddress bindAddress, double defaultPermitsPerSecond, RateLimiter.SleepingStopwatch stopwatch) {
+        checkArgument(defaultPermitsPerSecond > 0.0, "rate must be positive");
+        this.bindAddress = checkNotNull(bindAddress);
+        this.defaultPermitsPerSecond = defaultPermitsPerSecond;
+        this.stopwatch = checkNotNull(stopwatch);
+    }
+
+    public void setRate(String key, double permitsPerSecond) {
+        rates.put(key, permitsPerSecond);
+        RateLimiter rateLimiter = limiters.get(key);
+        if (rateLimiter != null) {
+            rateLimiter.setRate(permitsPerSecond);
+        }
+    }
+
+    /**
+     * 服务端的限流器注册到 rateLimiterRegistry 中, 加载redis中保存的速率并接收之后广播的修改.
+     * 注册需要访问redis, 在单独的线程上进行, 不阻塞 selector 线程, 注册完成前使用 {@link #setRate} 或默认的速率.
+     * rateLimiterRegistry 需要是服务端单独使用的实例, 随服务一起停止
+     */
+    public synchronized void setRateLimiterRegistry(RateLimiterRegistry rateLimiterRegistry) {
+        checkState(this.rateLimiterRegistry == null, "rate limiter registry already set");
+        this.rateLimiterRegistry = checkNotNull(rateLimiterRegistry);
+        registrar = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("token-server-registrar-%d").setDaemon(true).build());
+        // 之前已经创建的限流器也要注册, 和 selector 线程同时注册同一个限流器时只是多加载一次
+        for (RateLimiter rateLimiter : limiters.values()) {
+            register(rateLimiter);
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        checkState(selectorThread == null, "token server already started");
+        stopping = false;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(bindAddress);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new ThreadFactoryBuilder().setNameFormat("token-server-%d").setDaemon(true).build()
+                .newThread(this::run);
+        selectorThread.start();
+        logger.info("token server listening on {}", serverChannel.getLocalAddress());
+    }
+
+    /**
+     * 由 selector 线程关闭所有连接, 客户端马上切换到本地策略
+     */
+    public synchronized void stop() {
+        if (registrar != null) {
+            registrar.shutdownNow();
+            registrar = null;
+            rateLimiterRegistry.stop();
+        }
+        if (selectorThread == null) {
+            return;
+        }
+        stopping = true;
+        selector.wakeup();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selectorThread = null;
+    }
+
+    /**
+     * 实际监听的端口
+     */
+    public synchronized int getPort() throws IOException {
+        checkState(serverChannel != null, "token server not started");
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    private void run() {
+        try {
+            while (!stopping) {
+                selector.select();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey selectionKey = selected.next();
+                    selected.remove();
+                    handle(selectionKey);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("token server stopped", e);
+        } finally {
+            for (SelectionKey selectionKey : selector.keys()) {
+                close(selectionKey);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.warn("close token server failed", e);
+            }
+        }
+    }
+
+    private void handle(SelectionKey selectionKey) throws IOException {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        if (selectionKey.isAcceptable()) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.register(selector, SelectionKey.OP_READ, new Connection());
+            }
+            return;
+        }
+        SocketChannel channel = (SocketChannel) selectionKey.channel();
+        Connection connection = (Connection) selectionKey.attachment();
+        try {
+            if (selectionKey.isReadable()) {
+                if (channel.read(connection.in) < 0) {
+                    close(selectionKey);
+                    return;
+                }
+                process(connection);
+            }
+            connection.out.flip();
+            channel.write(connection.out);
+            connection.out.compact();
+            selectionKey.interestOps(connection.out.position() > 0
+                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("close token connection {}", channel, e);
+            close(selectionKey);
+        }
+    }
+
+    /**
+     * 处理 in 中所有完整的请求帧, 响应写入 out
+     */
+    private void process(Connection connection) {
+        ByteBuffer in = connection.in;
+        in.flip();
+        int length;
+        while ((length = TokenProtocol.completeFrameLength(in)) >= 0) {
+            in.getInt();
+            int end = in.position() + length;
+            long batchId = in.getLong();
+            long[] waitMicros = new long[in.getInt()];
+            for (int i = 0; i < waitMicros.length; i++) {
+                waitMicros[i] = decide(TokenProtocol.decodeDecision(in));
+            }
+            checkState(in.position() == end, "malformed frame of batch %s", batchId);
+            connection.ensureOutCapacity(TokenProtocol.responseLength(waitMicros.length));
+            TokenProtocol.encodeResponse(connection.out, batchId, waitMicros);
+        }
+        in.compact();
+        connection.ensureInCapacity(TokenProtocol.pendingFrameBytes(in));
+    }
+
+    long decide(TokenProtocol.Decision decision) {
+        if (decision.timeoutMicros == TokenProtocol.SETTLE) {
+            if (decision.permits != 0) {
+                limiter(decision.key).settle(decision.permits);
+            }
+            return 0L;
+        }
+        if (decision.permits <= 0) {
+            return decision.timeoutMicros == TokenProtocol.UP_TO ? 0L : TokenProtocol.REJECTED;
+        }
+        RateLimiter rateLimiter = limiter(decision.key);
+        if (decision.timeoutMicros == TokenProtocol.UP_TO) {
+            return rateLimiter.tryAcquireUpTo(decision.permits);
+        }
+        if (decision.timeoutMicros < 0) {
+            return rateLimiter.reserve(decision.permits);
+        }
+        return rateLimiter.tryReserve(decision.permits, decision.timeoutMicros);
+    }
+
+    private RateLimiter limiter(String key) {
+        RateLimiter rateLimiter = limiters.get(key);
+        if (rateLimiter != null) {
+            return rateLimiter;
+        }
+        RateLimiter created = RateLimiter.create(rates.getOrDefault(key, defaultPermitsPerSecond), stopwatch, key, permitsStore, null);
+        limiters.put(key, created);
+        register(created);
+        return created;
+    }
+
+    private void register(RateLimiter rateLimiter) {
+        ExecutorService executor = registrar;
+        if (executor == null) {
+            return;
+        }
+        RateLimiterRegistry registry = rateLimiterRegistry;
+        try {
+            executor.execute(() -> registry.register(rateLimiter.getKey(), rateLimiter));
+        } catch (RejectedExecutionException e) {
+            // 服务正在停止, 不再需要速率
+        }
+    }
+
+    private void close(SelectionKey selectionKey) {
+        selectionKey.cancel();
+        try {
+            selectionKey.channel().close();
+        } catch (IOException e) {
+            logger.warn("close token connection failed", e);
+        }
+    }
+
+    /**
+     * 一个客户端连接的读写缓冲, 只在 selector 线程上访问
+     */
+    private static final class Connection {
+        ByteBuffer in = ByteBuffer.allocate(8192);
+        ByteBuffer out = ByteBuffer.allocate(8192);
+
+        void ensureInCapacity(int frameBytes) {
+            if (frameBytes > in.capacity()) {
+                in = grow(in, frameBytes);
+            }
+        }
+
+        void ensureOutCapacity(int bytes) {
+            if (out.remaining() < bytes) {
+                out = grow(out, out.position() + bytes);
+            }
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minCapacity));
+            buffer.flip();
+            grown.put(buffer);
+            return grown;
+        }
+    }
+}
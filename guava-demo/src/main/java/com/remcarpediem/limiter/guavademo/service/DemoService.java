@@ -1,19 +1,42 @@
 package com.remcarpediem.limiter.guavademo.service;
 
-import com.google.common.util.concurrent.RateLimiter;
+import com.remcarpediem.limiter.guavademo.redis.Quota;
+import com.remcarpediem.limiter.guavademo.redis.RateLimitExceededException;
+import com.remcarpediem.limiter.guavademo.redis.RateLimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.TimeUnit;
+
 @Service
 public class DemoService {
     private Logger logger = LoggerFactory.getLogger(DemoService.class.getName());
     @Autowired
     private RateLimiter rateLimiter;
+    /**
+     * 配置了 limiter.quota.limit 时存在, 和限流器一起检查
+     */
+    @Autowired
+    private ObjectProvider<Quota> quota;
+    @Value("${limiter.quota.timeout-millis:1000}")
+    private long quotaTimeoutMillis;
+
     public Long getId() {
-        Double waitTime = rateLimiter.acquire(1);
-        logger.info("cur time is " + System.currentTimeMillis() / 1000 + " wait time is " + waitTime);
+        Quota quota = this.quota.getIfAvailable();
+        if (quota == null) {
+            Double waitTime = rateLimiter.acquire(1);
+            logger.info("cur time is " + System.currentTimeMillis() / 1000 + " wait time is " + waitTime);
+            return 1L;
+        }
+        // 配额用完或者超时内拿不到令牌时拒绝, 不无限等待
+        if (!rateLimiter.tryAcquire(1, quotaTimeoutMillis, TimeUnit.MILLISECONDS, quota)) {
+            throw new RateLimitExceededException(rateLimiter.getKey());
+        }
+        logger.info("cur time is " + System.currentTimeMillis() / 1000 + " within quota " + quota.getKey());
         return 1L;
     }
 }
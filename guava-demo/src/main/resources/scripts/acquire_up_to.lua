@@ -0,0 +1,51 @@
+-- KEYS[1]: 令牌桶 key
+-- ARGV[1]: 最多拿的令牌数, ARGV[2]: 当前时间(微秒), ARGV[3]: stableIntervalMicros
+-- ARGV[4]: 预热时间(微秒), 为 0 时按 stableIntervalMicros 补充令牌
+-- ARGV[5]: thresholdPermits, ARGV[6]: slope, ARGV[7]: thresholdPermits 以下每个存储的令牌的耗时(微秒)
+-- 计算和 SmoothRateLimiter 一致, 返回 {拿到的令牌数, nextFreeTicketMicros}, 令牌桶不存在时返回 {-1, 0}
+local current = redis.call('GET', KEYS[1])
+if not current then
+    return {-1, 0}
+end
+local permits = cjson.decode(current)
+local maxPermits = tonumber(ARGV[1])
+local now = tonumber(ARGV[2])
+local stableInterval = tonumber(ARGV[3])
+local warmupPeriod = tonumber(ARGV[4])
+local threshold = tonumber(ARGV[5])
+local slope = tonumber(ARGV[6])
+local storedInterval = tonumber(ARGV[7])
+
+local coolDownInterval = stableInterval
+if warmupPeriod > 0 then
+    coolDownInterval = warmupPeriod / permits.maxPermits
+end
+local nextFree = permits.nextFreeTicketMicros
+local stored = permits.storedPermits
+if now > nextFree then
+    stored = math.min(permits.maxPermits, stored + (now - nextFree) / coolDownInterval)
+    nextFree = now
+end
+if nextFree > now then
+    return {0, nextFree}
+end
+
+local granted = math.max(1, math.min(maxPermits, math.floor(stored)))
+local storedToSpend = math.min(granted, stored)
+local toTake = storedToSpend
+local wait = 0
+local above = stored - threshold
+if above > 0 then
+    local aboveToTake = math.min(above, toTake)
+    local length = (stableInterval + above * slope) + (stableInterval + (above - aboveToTake) * slope)
+    wait = math.floor(aboveToTake * length / 2.0)
+    toTake = toTake - aboveToTake
+end
+wait = wait + math.floor(storedInterval * toTake) + math.floor((granted - storedToSpend) * stableInterval)
+nextFree = nextFree + wait
+
+-- cjson 只保留 14 位有效数字, 微秒时间戳需要手工格式化
+local json = string.format('{"maxPermits":%.17g,"storedPermits":%.17g,"nextFreeTicketMicros":%.0f,"version":%.0f}',
+    permits.maxPermits, stored - storedToSpend, nextFree, (permits.version or 0) + 1)
+redis.call('SET', KEYS[1], json, 'EX', 120 + math.floor((nextFree - now) / 1000000))
+return {granted, nextFree}
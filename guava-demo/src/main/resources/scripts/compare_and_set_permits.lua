@@ -0,0 +1,12 @@
+-- KEYS[1]: 令牌桶 key
+-- ARGV[1]: 期望的版本号, ARGV[2]: 新的令牌桶json, ARGV[3]: 过期时间(秒)
+local current = redis.call('GET', KEYS[1])
+local version = 0
+if current then
+    version = cjson.decode(current).version or 0
+end
+if version ~= tonumber(ARGV[1]) then
+    return 0
+end
+redis.call('SET', KEYS[1], ARGV[2], 'EX', ARGV[3])
+return 1
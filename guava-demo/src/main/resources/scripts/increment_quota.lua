@@ -0,0 +1,5 @@
+-- KEYS[1]: 配额窗口计数器 key
+-- ARGV[1]: 增量, ARGV[2]: 过期时间(毫秒时间戳)
+local total = redis.call('INCRBY', KEYS[1], ARGV[1])
+redis.call('PEXPIREAT', KEYS[1], ARGV[2])
+return total
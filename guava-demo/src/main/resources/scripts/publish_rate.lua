@@ -0,0 +1,7 @@
+-- KEYS[1]: 限流配置 key, KEYS[2]: 配置版本号 key
+-- ARGV[1]: 限流器 key, ARGV[2]: permitsPerSecond, ARGV[3]: 广播 channel
+local version = redis.call('INCR', KEYS[2])
+local definition = cjson.encode({key = ARGV[1], permitsPerSecond = tonumber(ARGV[2]), version = version})
+redis.call('SET', KEYS[1], definition)
+redis.call('PUBLISH', ARGV[3], definition)
+return version
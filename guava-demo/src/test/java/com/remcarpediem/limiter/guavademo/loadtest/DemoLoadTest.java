@@ -0,0 +1,115 @@
+package com.remcarpediem.limiter.guavademo.loadtest;
+
+import com.remcarpediem.limiter.guavademo.GuavaDemoApplication;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 端到端压测, 分别以不同的限流模式启动 demo 应用, 开环压测 /test 并对比吞吐, 延迟和限流精度.
+ *
+ * <p>运行方式: mvn test -P load-test, profile 会设置 loadtest=true, 没有这个系统属性时跳过, 直接在 IDE 中运行也不会误触发.
+ * 结果写入日志和 target/load-test-report.txt. 参数通过系统属性调整:
+ * <ul>
+ *     <li>loadtest.permits-per-second: 限流值, 默认 50</li>
+ *     <li>loadtest.duration-seconds: 每轮压测时长, 默认 5</li>
+ *     <li>loadtest.redis: 为 true 时加上连接本地真实redis的模式(分布式锁, 乐观并发, lettuce pipeline)</li>
+ * </ul>
+ */
+public class DemoLoadTest {
+    private static final double PERMITS_PER_SECOND = Double.parseDouble(System.getProperty("loadtest.permits-per-second", "50"));
+    private static final long DURATION_SECONDS = Long.getLong("loadtest.duration-seconds", 5L);
+    private static final double[] OFFERED_LOAD_FACTORS = {0.5, 1.0, 1.5};
+    private static final Path REPORT = Paths.get("target", "load-test-report.txt");
+
+    private Logger logger = LoggerFactory.getLogger(DemoLoadTest.class.getName());
+
+    @Before
+    public void requireLoadTestProfile() {
+        Assume.assumeTrue("load test runs only with -P load-test or -Dloadtest=true", Boolean.getBoolean("loadtest"));
+    }
+
+    enum Mode {
+        LOCAL("local", "template", false),
+        REDIS_STAND_IN("local", "template", false, RedisStandInConfiguration.class),
+        OPTIMISTIC_STAND_IN("redis-optimistic", "template", false, RedisStandInConfiguration.class),
+        REDIS("redis", "template", true),
+        REDIS_OPTIMISTIC("redis-optimistic", "template", true),
+        REDIS_PIPELINED("redis-optimistic", "lettuce", true);
+
+        final String limiterMode;
+        final String store;
+        final boolean requiresRedis;
+        final Class<?>[] sources;
+
+        Mode(String limiterMode, String store, boolean requiresRedis, Class<?>... sources) {
+            this.limiterMode = limiterMode;
+            this.store = store;
+            this.requiresRedis = requiresRedis;
+            this.sources = sources;
+        }
+    }
+
+    @Test
+    public void compareLimiterModes() throws Exception {
+        List<String> rows = new ArrayList<>();
+        rows.add(String.format("%-20s %8s %10s %8s %8s %8s %8s %8s %7s",
+                "mode", "offered", "throughput", "accuracy", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)", "errors"));
+        for (Mode mode : Mode.values()) {
+            if (mode.requiresRedis && !Boolean.getBoolean("loadtest.redis")) {
+                continue;
+            }
+            try (ConfigurableApplicationContext context = start(mode)) {
+                int port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+                OpenLoopLoadGenerator generator = new OpenLoopLoadGenerator(new URL("http://localhost:" + port + "/test"));
+                for (double factor : OFFERED_LOAD_FACTORS) {
+                    LoadResult result = generator.run(PERMITS_PER_SECOND * factor, DURATION_SECONDS, TimeUnit.SECONDS);
+                    rows.add(String.format("%-20s %8.1f %10.1f %8.3f %8d %8d %8d %8d %7d",
+                            mode, result.getOfferedRate(), result.getThroughput(),
+                            result.admissionAccuracy(PERMITS_PER_SECOND),
+                            result.latencyMillisAt(50), result.latencyMillisAt(99), result.latencyMillisAt(99.9),
+                            result.latencyMillisAt(100), result.getErrors()));
+                    assertEquals(0, result.getErrors());
+                    // SmoothBursty 最多额外放行一秒的存量令牌
+                    assertTrue("throughput exceeds limit: " + result.getThroughput(),
+                            result.getThroughput() <= PERMITS_PER_SECOND * (DURATION_SECONDS + 1) / DURATION_SECONDS * 1.05);
+                }
+            }
+        }
+        String report = String.join(System.lineSeparator(), rows);
+        logger.info("load test report{}{}", System.lineSeparator(), report);
+        Files.createDirectories(REPORT.getParent());
+        Files.write(REPORT, report.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ConfigurableApplicationContext start(Mode mode) {
+        List<Class<?>> sources = new ArrayList<>();
+        sources.add(GuavaDemoApplication.class);
+        for (Class<?> source : mode.sources) {
+            sources.add(source);
+        }
+        return new SpringApplicationBuilder(sources.toArray(new Class<?>[0]))
+                .run("--server.port=0",
+                        "--limiter.mode=" + mode.limiterMode,
+                        "--limiter.store=" + mode.store,
+                        "--limiter.permits-per-second=" + PERMITS_PER_SECOND,
+                        "--limiter.snapshot.enabled=false",
+                        "--logging.level.com.remcarpediem=warn");
+    }
+}
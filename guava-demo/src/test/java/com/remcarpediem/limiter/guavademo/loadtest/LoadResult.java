@@ -0,0 +1,51 @@
+package com.remcarpediem.limiter.guavademo.loadtest;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一轮压测的结果, 延迟从计划发出时间开始计算, 避免 coordinated omission
+ */
+public class LoadResult {
+    private final double offeredRate;
+    private final long completed;
+    private final long errors;
+    private final double throughput;
+    private final Histogram latencyMicros;
+
+    LoadResult(double offeredRate, long completed, long errors, double throughput, Histogram latencyMicros) {
+        this.offeredRate = offeredRate;
+        this.completed = completed;
+        this.errors = errors;
+        this.throughput = throughput;
+        this.latencyMicros = latencyMicros;
+    }
+
+    public double getOfferedRate() {
+        return offeredRate;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getThroughput() {
+        return throughput;
+    }
+
+    public long latencyMillisAt(double percentile) {
+        return TimeUnit.MICROSECONDS.toMillis(latencyMicros.getValueAtPercentile(percentile));
+    }
+
+    /**
+     * 实际吞吐和期望吞吐(限流值与发送速率中较小的一个)的比值
+     */
+    public double admissionAccuracy(double permitsPerSecond) {
+        return throughput / Math.min(offeredRate, permitsPerSecond);
+    }
+}
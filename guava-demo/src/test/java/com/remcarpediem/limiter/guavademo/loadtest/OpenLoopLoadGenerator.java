@@ -0,0 +1,89 @@
+package com.remcarpediem.limiter.guavademo.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 开环压测: 按固定到达速率发请求, 不等待前一个请求返回
+ */
+public class OpenLoopLoadGenerator {
+    private static final int TIMEOUT_MILLIS = (int) TimeUnit.MINUTES.toMillis(1);
+
+    private final URL url;
+
+    public OpenLoopLoadGenerator(URL url) {
+        this.url = url;
+    }
+
+    public LoadResult run(double requestsPerSecond, long duration, TimeUnit unit) throws InterruptedException {
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+        int total = (int) (unit.toNanos(duration) / intervalNanos);
+        Histogram latencyMicros = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(10), 3);
+        AtomicLong errors = new AtomicLong();
+        AtomicLong lastCompletionNanos = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(total);
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        ExecutorService senders = Executors.newCachedThreadPool();
+        long startNanos = System.nanoTime();
+        AtomicLong sent = new AtomicLong();
+        scheduler.scheduleAtFixedRate(() -> {
+            long index = sent.getAndIncrement();
+            if (index >= total) {
+                return;
+            }
+            long intendedNanos = startNanos + index * intervalNanos;
+            senders.execute(() -> {
+                try {
+                    send();
+                    long now = System.nanoTime();
+                    latencyMicros.recordValue(TimeUnit.NANOSECONDS.toMicros(now - intendedNanos));
+                    lastCompletionNanos.accumulateAndGet(now, Math::max);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }, 0, intervalNanos, TimeUnit.NANOSECONDS);
+
+        done.await(duration + TimeUnit.MINUTES.toSeconds(2), TimeUnit.SECONDS);
+        scheduler.shutdownNow();
+        senders.shutdownNow();
+
+        long completed = latencyMicros.getTotalCount();
+        long elapsedNanos = Math.max(lastCompletionNanos.get() - startNanos, 1);
+        double throughput = completed * 1e9 / elapsedNanos;
+        return new LoadResult(requestsPerSecond, completed, errors.get(), throughput, latencyMicros);
+    }
+
+    private void send() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("unexpected status " + connection.getResponseCode());
+            }
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[256];
+                while (in.read(buffer) != -1) {
+                    // drain
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
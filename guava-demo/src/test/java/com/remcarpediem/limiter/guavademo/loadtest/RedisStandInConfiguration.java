@@ -0,0 +1,30 @@
+package com.remcarpediem.limiter.guavademo.loadtest;
+
+import com.remcarpediem.limiter.guavademo.redis.FakeRedisPermitsStore;
+import com.remcarpediem.limiter.guavademo.redis.PermitsStore;
+import com.remcarpediem.limiter.guavademo.redis.Ticker;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 本地没有redis时代替 redis 模式: 令牌桶按json存取, 锁换成进程内的锁, 不包含网络开销.
+ * redis-optimistic 模式下锁不会被使用
+ */
+@TestConfiguration
+public class RedisStandInConfiguration {
+
+    @Bean
+    @Primary
+    public PermitsStore permitsStore() {
+        return new FakeRedisPermitsStore(Ticker.systemTicker());
+    }
+
+    @Bean
+    public Lock rateLimiterLock() {
+        return new ReentrantLock();
+    }
+}
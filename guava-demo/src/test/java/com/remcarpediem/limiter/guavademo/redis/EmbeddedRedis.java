@@ -0,0 +1,52 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Assume;
+import org.junit.rules.ExternalResource;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * 测试用的嵌入式 redis, 作为 @ClassRule 使用, 监听随机端口. 当前环境无法启动 redis 时跳过整个测试类
+ */
+class EmbeddedRedis extends ExternalResource {
+    private RedisServer redisServer;
+    private int port;
+
+    @Override
+    protected void before() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        try {
+            redisServer = RedisServer.builder().port(port).setting("bind 127.0.0.1").build();
+            redisServer.start();
+        } catch (RuntimeException e) {
+            redisServer = null;
+            Assume.assumeNoException("embedded redis unavailable", e);
+        }
+    }
+
+    @Override
+    protected void after() {
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * 连接嵌入式 redis 的连接工厂, 用完后调用 destroy
+     */
+    LettuceConnectionFactory connectionFactory() {
+        LettuceConnectionFactory connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration("127.0.0.1", port));
+        connectionFactory.afterPropertiesSet();
+        return connectionFactory;
+    }
+}
@@ -0,0 +1,78 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程内模拟的redis, 和 {@link PermitsTemplate} 一样以json存储令牌桶, 按 {@link Ticker} 计算过期
+ */
+public class FakeRedisPermitsStore implements PermitsStore {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Ticker ticker;
+
+    public FakeRedisPermitsStore(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    @Override
+    public RedisPermits get(String key) {
+        Entry entry = live(key, entries.get(key));
+        return entry == null ? null : read(entry);
+    }
+
+    @Override
+    public void set(String key, RedisPermits permits, long expiresSeconds) {
+        entries.put(key, write(permits, expiresSeconds));
+    }
+
+    @Override
+    public boolean compareAndSet(String key, long expectedVersion, RedisPermits permits, long expiresSeconds) {
+        Entry update = write(permits, expiresSeconds);
+        return entries.compute(key, (k, stored) -> {
+            boolean live = stored != null && stored.expireAtNanos > ticker.read();
+            long currentVersion = live ? read(stored).getVersion() : 0L;
+            return currentVersion == expectedVersion ? update : stored;
+        }) == update;
+    }
+
+    private Entry live(String key, Entry entry) {
+        if (entry == null || entry.expireAtNanos > ticker.read()) {
+            return entry;
+        }
+        entries.remove(key, entry);
+        return null;
+    }
+
+    private RedisPermits read(Entry entry) {
+        try {
+            return objectMapper.readValue(entry.value, RedisPermits.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Entry write(RedisPermits permits, long expiresSeconds) {
+        try {
+            return new Entry(objectMapper.writeValueAsBytes(permits),
+                    ticker.read() + TimeUnit.SECONDS.toNanos(expiresSeconds));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class Entry {
+        final byte[] value;
+        final long expireAtNanos;
+
+        Entry(byte[] value, long expireAtNanos) {
+            this.value = value;
+            this.expireAtNanos = expireAtNanos;
+        }
+    }
+}
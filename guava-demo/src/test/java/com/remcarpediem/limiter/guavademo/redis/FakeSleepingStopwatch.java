@@ -0,0 +1,52 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于 {@link FakeTicker} 的 SleepingStopwatch, sleep 只推进模拟时间并记录下来
+ */
+class FakeSleepingStopwatch extends RateLimiter.SleepingStopwatch {
+    private final FakeTicker ticker;
+    private final List<Long> sleeps = new ArrayList<>();
+
+    FakeSleepingStopwatch() {
+        this(new FakeTicker());
+    }
+
+    FakeSleepingStopwatch(FakeTicker ticker) {
+        this.ticker = ticker;
+    }
+
+    FakeTicker ticker() {
+        return ticker;
+    }
+
+    /**
+     * 推进到指定时间, 已经超过该时间时不做处理
+     */
+    void advanceTo(long micros) {
+        long now = readMicros();
+        if (micros > now) {
+            ticker.advance(micros - now, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    List<Long> sleeps() {
+        return sleeps;
+    }
+
+    @Override
+    protected long readMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(ticker.read());
+    }
+
+    @Override
+    protected void sleepMicrosUninterruptibly(long micros) {
+        sleeps.add(micros);
+        if (micros > 0) {
+            ticker.advance(micros, TimeUnit.MICROSECONDS);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 手动推进的时间源, 用于测试和模拟
+ */
+public class FakeTicker extends Ticker {
+    private final AtomicLong nanos = new AtomicLong();
+
+    public FakeTicker advance(long time, TimeUnit timeUnit) {
+        nanos.addAndGet(timeUnit.toNanos(time));
+        return this;
+    }
+
+    @Override
+    public long read() {
+        return nanos.get();
+    }
+}
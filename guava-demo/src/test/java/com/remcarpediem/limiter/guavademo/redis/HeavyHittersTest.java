@@ -0,0 +1,63 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HeavyHittersTest {
+    private final LimiterFixture fixture = new LimiterFixture();
+
+    @Test
+    public void testHeavyHitters() {
+        HeavyHitters heavyHitters = new HeavyHitters(256, 4, 3);
+        RateLimiter abuser = fixture.shared(1.0, "abuser");
+        abuser.setHeavyHitters(heavyHitters);
+        for (int i = 0; i < 100; i++) {
+            abuser.tryAcquire(1, 0, TimeUnit.MICROSECONDS);
+        }
+        for (int i = 0; i < 1000; i++) {
+            heavyHitters.recordAcquired("key-" + i, 1);
+        }
+        // 候选已经被小 key 占满, 最后到达的大 key 替换抽到的候选中估计值最小的一个
+        heavyHitters.recordAcquired("busy", 1000);
+
+        assertEquals("busy", heavyHitters.topConsumers().get(0).getKey());
+        assertEquals("abuser", heavyHitters.topRejected().get(0).getKey());
+        assertTrue(heavyHitters.topRejected().get(0).getRejections() >= 99);
+
+        heavyHitters.decay();
+        List<HeavyHitter> consumers = heavyHitters.topConsumers();
+        assertEquals(3, consumers.size());
+        assertEquals("busy", consumers.get(0).getKey());
+        assertTrue(consumers.get(0).getPermits() >= 500);
+
+        HeavyHitters merged = heavyHitters.emptyCopy();
+        merged.merge(heavyHitters.snapshot("node1"));
+        merged.merge(heavyHitters.snapshot("node2"));
+        assertTrue(merged.topConsumers().get(0).getPermits() >= 1000);
+    }
+
+    @Test
+    public void testRejectedReserveRecordedAsRejected() {
+        HeavyHitters heavyHitters = new HeavyHitters(256, 4, 3);
+        RateLimiter limiter = fixture.shared(1.0, "denied");
+        limiter.setHeavyHitters(heavyHitters);
+        // 客户端没有启动, 按 DENY 拒绝
+        limiter.setTokenClient(new TokenClient(new InetSocketAddress("127.0.0.1", 1),
+                TokenClient.FallbackPolicy.DENY, 1.0, 1, TimeUnit.SECONDS));
+        try {
+            limiter.reserve(2);
+            fail();
+        } catch (RateLimitExceededException expected) {
+        }
+        assertTrue(heavyHitters.topConsumers().isEmpty());
+        assertEquals("denied", heavyHitters.topRejected().get(0).getKey());
+        assertTrue(heavyHitters.topRejected().get(0).getRejections() >= 2);
+    }
+}
@@ -0,0 +1,97 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在嵌入式 redis 上运行 {@link LettucePermitsStore} 和其中的 lua 脚本, 当前环境无法启动 redis 时跳过
+ */
+public class LettucePermitsStoreTest {
+    @ClassRule
+    public static final EmbeddedRedis redis = new EmbeddedRedis();
+
+    private final LimiterFixture fixture = new LimiterFixture();
+    private LettucePermitsStore store;
+
+    @Before
+    public void setUp() {
+        RedisClient client = RedisClient.create(RedisURI.create("127.0.0.1", redis.getPort()));
+        store = new LettucePermitsStore(client, Duration.ofSeconds(2));
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test
+    public void testGetAndCompareAndSet() {
+        assertNull(store.get("missing"));
+
+        RedisPermits permits = new RedisPermits(1000L);
+        permits.setMaxPermits(5.0);
+        permits.setStoredPermits(2.5);
+        store.set("cas", permits, 60);
+        RedisPermits stored = store.get("cas");
+        assertEquals(2.5, stored.getStoredPermits(), 0.0);
+        assertEquals(1000L, stored.getNextFreeTicketMicros());
+
+        permits.setVersion(1);
+        assertTrue(store.compareAndSet("cas", 0, permits, 60));
+        // 版本号已经变成 1, 按旧版本写入失败
+        assertFalse(store.compareAndSet("cas", 0, permits, 60));
+        assertEquals(1L, store.get("cas").getVersion());
+    }
+
+    @Test
+    public void testSharedLimiter() {
+        RateLimiter first = fixture.shared(5.0, "shared", store);
+        RateLimiter second = fixture.shared(5.0, "shared", store);
+
+        assertEquals(0L, first.reserve(1));
+        // 两个限流器共用 redis 中的令牌桶
+        assertEquals(200_000L, second.reserve(1));
+        assertFalse(first.tryAcquire(1, 100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testAcquireUpToMissingKey() {
+        PartialGrantRequest request = new PartialGrantRequest(3, 0L, 200_000.0, 0L, Double.MAX_VALUE, 0.0, 0.0);
+        // 令牌桶不存在时脚本不生成默认令牌桶, 交给限流器读改写
+        assertNull(store.acquireUpTo("absent", request));
+        assertNull(store.get("absent"));
+    }
+
+    @Test
+    public void testAcquireUpToScriptMatchesJava() {
+        assertSameGrants(fixture.shared(5.0, "bursty", store),
+                fixture.shared(5.0, "bursty", new FakeRedisPermitsStore(fixture.ticker)));
+        assertSameGrants(fixture.warmingUp(10.0, "warm", store),
+                fixture.warmingUp(10.0, "warm", new FakeRedisPermitsStore(fixture.ticker)));
+    }
+
+    /**
+     * 脚本在 redis 中完成的部分预定和 java 侧读改写的结果一致
+     */
+    private void assertSameGrants(RateLimiter script, RateLimiter java) {
+        long[] advanceMillis = {0, 0, 1000, 0, 0, 0, 350, 3000, 0, 0, 50};
+        for (long millis : advanceMillis) {
+            fixture.advance(millis, TimeUnit.MILLISECONDS);
+            assertEquals(java.tryAcquireUpTo(3), script.tryAcquireUpTo(3));
+            assertEquals(java.currentPermits().getNextFreeTicketMicros(), script.currentPermits().getNextFreeTicketMicros());
+            assertEquals(java.currentPermits().getStoredPermits(), script.currentPermits().getStoredPermits(), 1e-6);
+        }
+    }
+}
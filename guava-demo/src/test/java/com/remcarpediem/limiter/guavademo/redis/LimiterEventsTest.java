@@ -0,0 +1,65 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LimiterEventsTest {
+    private final LimiterFixture fixture = new LimiterFixture();
+
+    @Test
+    public void testRecordJfrEvents() throws Exception {
+        RateLimiter rateLimiter = fixture.shared(1.0, "jfr");
+        Path file = Files.createTempFile("rate-limiter", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(RateLimiterDecisionEvent.class);
+            recording.enable(RateLimiterSleepEvent.class);
+            recording.start();
+            rateLimiter.acquire(1);
+            rateLimiter.acquire(1);
+            assertFalse(rateLimiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+            // 令牌桶最多存 1 个令牌, 最多拿 3 个时只拿到 1 个
+            fixture.advance(2, TimeUnit.SECONDS);
+            assertEquals(1, rateLimiter.tryAcquireUpTo(3));
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> decisions = new ArrayList<>();
+        List<RecordedEvent> sleeps = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals("com.remcarpediem.limiter.Decision")) {
+                decisions.add(event);
+            } else if (event.getEventType().getName().equals("com.remcarpediem.limiter.Sleep")) {
+                sleeps.add(event);
+            }
+        }
+        Files.delete(file);
+        assertEquals(4, decisions.size());
+        assertEquals("jfr", decisions.get(1).getString("key"));
+        assertEquals("reserve", decisions.get(1).getString("operation"));
+        assertEquals(1000000L, decisions.get(1).getLong("waitMicros"));
+        assertTrue(decisions.get(1).getBoolean("granted"));
+        assertEquals("tryAcquire", decisions.get(2).getString("operation"));
+        assertFalse(decisions.get(2).getBoolean("granted"));
+        assertEquals(0, decisions.get(2).getInt("grantedPermits"));
+        assertEquals("tryAcquireUpTo", decisions.get(3).getString("operation"));
+        assertEquals(3, decisions.get(3).getInt("permits"));
+        assertEquals(1, decisions.get(3).getInt("grantedPermits"));
+        assertTrue(decisions.get(3).getBoolean("granted"));
+        // 第一次不需要等待, 只记录一次 sleep
+        assertEquals(1, sleeps.size());
+        assertEquals(1000000L, sleeps.get(0).getLong("requestedMicros"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试共用的模拟时钟和令牌桶存储, 同一个 fixture 创建的限流器共享时钟和存储
+ */
+class LimiterFixture {
+    final FakeTicker ticker;
+    final FakeSleepingStopwatch stopwatch;
+    final FakeRedisPermitsStore store;
+
+    LimiterFixture() {
+        this(new FakeTicker());
+    }
+
+    LimiterFixture(FakeTicker ticker) {
+        this.ticker = ticker;
+        this.stopwatch = new FakeSleepingStopwatch(ticker);
+        this.store = new FakeRedisPermitsStore(ticker);
+    }
+
+    /**
+     * 令牌桶保存在进程内存中的限流器
+     */
+    RateLimiter local(double permitsPerSecond) {
+        return RateLimiter.create(permitsPerSecond, stopwatch);
+    }
+
+    /**
+     * 令牌桶保存在模拟redis中, 按版本号乐观并发写入
+     */
+    RateLimiter shared(double permitsPerSecond, String key) {
+        return shared(permitsPerSecond, key, store);
+    }
+
+    RateLimiter shared(double permitsPerSecond, String key, PermitsStore permitsStore) {
+        return RateLimiter.create(permitsPerSecond, stopwatch, key, permitsStore, null);
+    }
+
+    RateLimiter warmingUp(double permitsPerSecond, String key, PermitsStore permitsStore) {
+        return RateLimiter.create(permitsPerSecond, 2, TimeUnit.SECONDS, 3.0, stopwatch, key, permitsStore, null);
+    }
+
+    void advance(long time, TimeUnit unit) {
+        ticker.advance(time, unit);
+    }
+
+    List<Long> sleeps() {
+        return stopwatch.sleeps();
+    }
+}
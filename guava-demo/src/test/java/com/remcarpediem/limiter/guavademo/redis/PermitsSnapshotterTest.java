@@ -0,0 +1,78 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PermitsSnapshotterTest {
+    private final LimiterFixture fixture = new LimiterFixture();
+
+    @Test
+    public void testRestoreWarmPermitsFromSnapshot() throws Exception {
+        RateLimiter warm = fixture.warmingUp(10.0, "key", fixture.store);
+        for (int i = 0; i < 40; i++) {
+            warm.reserve(1);
+        }
+        fixture.advance(6, TimeUnit.SECONDS);
+
+        Path path = Files.createTempFile("permits", ".snapshot");
+        try (PermitsSnapshotFile snapshotFile = new PermitsSnapshotFile(path, 4096)) {
+            assertEquals(1, snapshotFile.write(Collections.singletonMap("key", warm.currentPermits())));
+        }
+        FakeRedisPermitsStore restartedStore = new FakeRedisPermitsStore(fixture.ticker);
+        try (PermitsSnapshotFile snapshotFile = new PermitsSnapshotFile(path, 4096)) {
+            assertEquals(1, new PermitsSnapshotter(null, snapshotFile, 5, TimeUnit.SECONDS).restore(restartedStore));
+        } finally {
+            Files.delete(path);
+        }
+
+        RateLimiter restored = fixture.warmingUp(10.0, "key", restartedStore);
+        RateLimiter cold = fixture.warmingUp(10.0, "key", new FakeRedisPermitsStore(fixture.ticker));
+        restored.reserve(1);
+        cold.reserve(1);
+        assertTrue(restored.reserve(1) < cold.reserve(1));
+    }
+
+    @Test
+    public void testLongKeys() throws Exception {
+        // 超过 Short.MAX_VALUE 字节的 key 按无符号长度读回, 超过 0xFFFF 字节的 key 不写入
+        String longKey = String.join("", Collections.nCopies(40000, "k"));
+        String tooLongKey = String.join("", Collections.nCopies(0x10000, "k"));
+        Map<String, RedisPermits> permits = new LinkedHashMap<>();
+        permits.put(tooLongKey, new RedisPermits(1L));
+        permits.put(longKey, new RedisPermits(2L));
+        permits.put("key", new RedisPermits(3L));
+
+        Path path = Files.createTempFile("permits", ".snapshot");
+        try (PermitsSnapshotFile snapshotFile = new PermitsSnapshotFile(path, 1 << 17)) {
+            assertEquals(2, snapshotFile.write(permits));
+            Map<String, RedisPermits> read = snapshotFile.read();
+            assertEquals(Arrays.asList(longKey, "key"), new ArrayList<>(read.keySet()));
+            assertEquals(2L, read.get(longKey).getNextFreeTicketMicros());
+            assertEquals(3L, read.get("key").getNextFreeTicketMicros());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedSnapshotFileRejectsAccess() throws Exception {
+        Path path = Files.createTempFile("permits", ".snapshot");
+        PermitsSnapshotFile snapshotFile = new PermitsSnapshotFile(path, 4096);
+        snapshotFile.close();
+        snapshotFile.close();
+        Files.delete(path);
+        // 关闭两次不会重复释放映射, 关闭后的读写直接拒绝, 不会访问已经解除映射的内存
+        snapshotFile.write(Collections.emptyMap());
+    }
+}
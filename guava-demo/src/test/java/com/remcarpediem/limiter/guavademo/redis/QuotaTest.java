@@ -0,0 +1,51 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuotaTest {
+    private final LimiterFixture fixture = new LimiterFixture();
+
+    @Test
+    public void testDailyQuotaWithLimiter() {
+        AtomicInteger increments = new AtomicInteger();
+        QuotaStore store = new InMemoryQuotaStore(fixture.ticker) {
+            @Override
+            public long incrementBy(String key, long delta, long expireAtMillis) {
+                increments.incrementAndGet();
+                return super.incrementBy(key, delta, expireAtMillis);
+            }
+        };
+        Quota daily = new Quota("key", QuotaWindow.DAY, 5, store, 2, fixture.ticker);
+        RateLimiter limiter = fixture.local(1.0);
+
+        assertTrue(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS, daily));
+        // 限流器拒绝时配额退回到本地额度
+        assertFalse(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS, daily));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(daily.tryConsume(1));
+        }
+        assertFalse(daily.tryConsume(1));
+        assertFalse(daily.tryConsume(1));
+        assertEquals(3, increments.get());
+
+        fixture.advance(1, TimeUnit.DAYS);
+        assertTrue(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS, daily));
+        assertEquals(4, increments.get());
+    }
+
+    @Test
+    public void testMonthWindow() {
+        long february = Instant.parse("2019-02-15T10:30:00Z").toEpochMilli();
+        long start = QuotaWindow.MONTH.startMillis(february);
+        assertEquals(Instant.parse("2019-02-01T00:00:00Z").toEpochMilli(), start);
+        assertEquals(Instant.parse("2019-03-01T00:00:00Z").toEpochMilli(), QuotaWindow.MONTH.endMillis(start));
+    }
+}
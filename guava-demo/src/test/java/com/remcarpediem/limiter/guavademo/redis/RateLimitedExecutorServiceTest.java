@@ -0,0 +1,154 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimitedExecutorServiceTest {
+
+    @Test
+    public void testRateLimitedExecutor() throws Exception {
+        LimiterFixture fixture = new LimiterFixture();
+        RateLimitedExecutorService executor = new RateLimitedExecutorService(fixture.local(5.0),
+                MoreExecutors.newDirectExecutorService(), 10);
+        AtomicInteger executed = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            executor.execute(executed::incrementAndGet);
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(3, executed.get());
+        assertEquals(Arrays.asList(0L, 200000L, 200000L), fixture.sleeps());
+    }
+
+    @Test
+    public void testRateLimitedExecutorRejectsWhenQueueFull() throws Exception {
+        CountDownLatch waiting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FakeSleepingStopwatch stopwatch = new FakeSleepingStopwatch() {
+            @Override
+            protected void sleepMicrosUninterruptibly(long micros) {
+                waiting.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                super.sleepMicrosUninterruptibly(micros);
+            }
+        };
+        RateLimiter limiter = RateLimiter.create(5.0, stopwatch);
+        RateLimitedExecutorService executor = new RateLimitedExecutorService(limiter, MoreExecutors.newDirectExecutorService(), 1);
+        AtomicInteger executed = new AtomicInteger();
+        executor.execute(executed::incrementAndGet);
+        waiting.await();
+        executor.execute(executed::incrementAndGet);
+        try {
+            executor.execute(executed::incrementAndGet);
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, executor.getQueueSize());
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(2, executed.get());
+    }
+
+    @Test
+    public void testExecuteRacingShutdownNeverStrandsTasks() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            RateLimitedExecutorService executor = new RateLimitedExecutorService(new LimiterFixture().local(1000.0),
+                    MoreExecutors.newDirectExecutorService(), 1000);
+            AtomicInteger accepted = new AtomicInteger();
+            AtomicInteger executed = new AtomicInteger();
+            CountDownLatch start = new CountDownLatch(1);
+            Thread submitter = new Thread(() -> {
+                Uninterruptibles.awaitUninterruptibly(start);
+                try {
+                    while (true) {
+                        executor.execute(executed::incrementAndGet);
+                        accepted.incrementAndGet();
+                    }
+                } catch (RejectedExecutionException expected) {
+                }
+            });
+            submitter.start();
+            start.countDown();
+            executor.shutdown();
+            submitter.join();
+            // 关闭之前接受的任务都会执行, 不会留在队列里
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(accepted.get(), executed.get());
+        }
+    }
+
+    @Test
+    public void testShutdownNowReturnsTaskWaitingForPermit() throws Exception {
+        CountDownLatch waiting = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        FakeSleepingStopwatch stopwatch = new FakeSleepingStopwatch() {
+            @Override
+            protected void sleepMicrosUninterruptibly(long micros) {
+                waiting.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+                super.sleepMicrosUninterruptibly(micros);
+            }
+        };
+        RateLimiter limiter = RateLimiter.create(5.0, stopwatch);
+        RateLimitedExecutorService executor = new RateLimitedExecutorService(limiter, MoreExecutors.newDirectExecutorService(), 10);
+        AtomicInteger executed = new AtomicInteger();
+        Runnable first = executed::incrementAndGet;
+        Runnable second = executed::incrementAndGet;
+        executor.execute(first);
+        waiting.await();
+        executor.execute(second);
+
+        // 调度线程拿着 first 等待令牌时关闭, first 和队列中的 second 都返回给调用方
+        List<Runnable> remaining = executor.shutdownNow();
+        assertEquals(2, remaining.size());
+        assertSame(first, remaining.get(0));
+        assertSame(second, remaining.get(1));
+        release.countDown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, executed.get());
+    }
+
+    @Test
+    public void testFailedAcquireRejectsOnlyThatTask() throws Exception {
+        AtomicInteger sleeps = new AtomicInteger();
+        FakeSleepingStopwatch stopwatch = new FakeSleepingStopwatch() {
+            @Override
+            protected void sleepMicrosUninterruptibly(long micros) {
+                if (sleeps.getAndIncrement() == 0) {
+                    throw new IllegalStateException("store unavailable");
+                }
+                super.sleepMicrosUninterruptibly(micros);
+            }
+        };
+        List<Runnable> rejected = Collections.synchronizedList(new ArrayList<>());
+        RateLimitedExecutorService executor = new RateLimitedExecutorService(RateLimiter.create(5.0, stopwatch),
+                MoreExecutors.newDirectExecutorService(), 10, (task, service) -> rejected.add(task));
+        AtomicInteger executed = new AtomicInteger();
+        Runnable failing = executed::incrementAndGet;
+        executor.execute(failing);
+        executor.execute(executed::incrementAndGet);
+        executor.execute(executed::incrementAndGet);
+
+        // 第一次拿令牌失败只拒绝当前任务, 调度线程继续执行后面的任务
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(failing), rejected);
+        assertEquals(2, executed.get());
+    }
+}
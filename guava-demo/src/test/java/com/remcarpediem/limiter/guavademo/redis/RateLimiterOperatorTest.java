@@ -0,0 +1,99 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimiterOperatorTest {
+    private final LimiterFixture fixture = new LimiterFixture();
+
+    @Test
+    public void testDelayMode() {
+        // 延迟不真正等待, 只记录下来, 限流器的时间也不前进
+        RecordingScheduler scheduler = new RecordingScheduler();
+        List<Integer> delayed = Flux.range(1, 3)
+                .transform(RateLimiterOperator.<Integer>of(fixture.local(10.0), RateLimiterOperator.Mode.DELAY,
+                        scheduler, Schedulers.immediate()))
+                .collectList().block();
+        assertEquals(Arrays.asList(1, 2, 3), delayed);
+        assertEquals(Arrays.asList(TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(200)), scheduler.delayNanos);
+    }
+
+    @Test
+    public void testDropMode() {
+        List<Integer> dropped = Flux.range(1, 3)
+                .transform(RateLimiterOperator.<Integer>of(fixture.local(1.0), RateLimiterOperator.Mode.DROP))
+                .collectList().block();
+        assertEquals(Collections.singletonList(1), dropped);
+    }
+
+    @Test
+    public void testErrorMode() {
+        List<Integer> received = new ArrayList<>();
+        try {
+            Flux.range(1, 3)
+                    .transform(RateLimiterOperator.<Integer>of(fixture.local(1.0), RateLimiterOperator.Mode.ERROR))
+                    .doOnNext(received::add)
+                    .blockLast();
+            fail();
+        } catch (RateLimitExceededException expected) {
+        }
+        assertEquals(Collections.singletonList(1), received);
+    }
+
+    @Test
+    public void testReserveOffEmittingThread() {
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        PermitsStore store = new FakeRedisPermitsStore(fixture.ticker) {
+            @Override
+            public RedisPermits get(String key) {
+                threads.add(Thread.currentThread().getName());
+                return super.get(key);
+            }
+        };
+        RateLimiter limiter = fixture.shared(1000.0, "key", store);
+        threads.clear();
+        Flux.range(1, 2).transform(RateLimiterOperator.of(limiter)).blockLast();
+        assertEquals(2, threads.size());
+        for (String thread : threads) {
+            assertTrue(thread, thread.startsWith("elastic"));
+        }
+    }
+
+    /**
+     * 立即执行延迟任务, 记录要求的延迟
+     */
+    private static final class RecordingScheduler implements Scheduler {
+        final List<Long> delayNanos = new ArrayList<>();
+
+        @Override
+        public Disposable schedule(Runnable task) {
+            task.run();
+            return Disposables.disposed();
+        }
+
+        @Override
+        public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+            delayNanos.add(unit.toNanos(delay));
+            return schedule(task);
+        }
+
+        @Override
+        public Worker createWorker() {
+            return Schedulers.immediate().createWorker();
+        }
+    }
+}
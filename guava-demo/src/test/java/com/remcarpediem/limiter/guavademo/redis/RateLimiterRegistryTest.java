@@ -0,0 +1,119 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在嵌入式 redis 上验证 {@link RateLimiterRegistry} 按版本号加载和应用速率
+ */
+public class RateLimiterRegistryTest {
+    @ClassRule
+    public static final EmbeddedRedis redis = new EmbeddedRedis();
+
+    private LettuceConnectionFactory connectionFactory;
+    private RateDefinitionTemplate rateDefinitionTemplate;
+    private RateLimiterRegistry registry;
+
+    @Before
+    public void setUp() {
+        connectionFactory = redis.connectionFactory();
+        rateDefinitionTemplate = new RateDefinitionTemplate();
+        rateDefinitionTemplate.setConnectionFactory(connectionFactory);
+        rateDefinitionTemplate.afterPropertiesSet();
+        rateDefinitionTemplate.execute(connection -> {
+            connection.flushAll();
+            return null;
+        }, true);
+        registry = new RateLimiterRegistry(rateDefinitionTemplate);
+    }
+
+    @After
+    public void tearDown() {
+        registry.stop();
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void testLoadOnCreate() {
+        assertEquals(1L, registry.publish("demo", 5.0));
+
+        RateLimiter rateLimiter = registry.create("demo", 1.0);
+        assertEquals(5.0, rateLimiter.getRate(), 0.0);
+        assertEquals(1L, rateLimiter.getRateVersion());
+    }
+
+    @Test
+    public void testRefreshAppliesNewerVersion() {
+        RateLimiter rateLimiter = registry.create("demo", 1.0);
+        assertEquals(1.0, rateLimiter.getRate(), 0.0);
+
+        // 没有订阅频道, 相当于广播丢失, 只能通过 refresh 补偿
+        registry.publish("demo", 5.0);
+        registry.publish("demo", 8.0);
+        registry.refresh();
+        assertEquals(8.0, rateLimiter.getRate(), 0.0);
+        assertEquals(2L, rateLimiter.getRateVersion());
+    }
+
+    @Test
+    public void testStaleOrEqualVersionIgnored() {
+        registry.publish("demo", 5.0);
+        registry.publish("demo", 8.0);
+        RateLimiter rateLimiter = registry.create("demo", 1.0);
+        assertEquals(2L, rateLimiter.getRateVersion());
+
+        // 乱序到达的旧广播和重复的广播都不生效
+        registry.onMessage(message(new RateDefinition("demo", 5.0, 1L)), null);
+        registry.onMessage(message(new RateDefinition("demo", 3.0, 2L)), null);
+        assertEquals(8.0, rateLimiter.getRate(), 0.0);
+        assertEquals(2L, rateLimiter.getRateVersion());
+
+        registry.onMessage(message(new RateDefinition("demo", 3.0, 3L)), null);
+        assertEquals(3.0, rateLimiter.getRate(), 0.0);
+        assertEquals(3L, rateLimiter.getRateVersion());
+    }
+
+    @Test
+    public void testTokenServerAppliesPublishedRates() throws InterruptedException {
+        registry.publish("served", 5.0);
+        TokenServer server = new TokenServer(new InetSocketAddress("127.0.0.1", 0), 1.0, new FakeSleepingStopwatch());
+        server.setRateLimiterRegistry(registry);
+        try {
+            assertEquals(0L, server.decide(new TokenProtocol.Decision("served", 1, TokenProtocol.ACQUIRE)));
+            // 第一次请求时创建限流器, 在后台注册后加载redis中的速率
+            RateLimiter rateLimiter = awaitRegistered("served");
+            assertEquals(5.0, rateLimiter.getRate(), 0.0);
+
+            registry.publish("served", 8.0);
+            registry.refresh();
+            assertEquals(8.0, rateLimiter.getRate(), 0.0);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private RateLimiter awaitRegistered(String key) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (registry.get(key) == null || registry.get(key).getRateVersion() == 0) {
+            assertTrue("limiter not registered", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return registry.get(key);
+    }
+
+    private DefaultMessage message(RateDefinition definition) {
+        byte[] body = new Jackson2JsonRedisSerializer<>(RateDefinition.class).serialize(definition);
+        return new DefaultMessage(RateLimiterRegistry.CHANNEL.getBytes(StandardCharsets.UTF_8), body);
+    }
+}
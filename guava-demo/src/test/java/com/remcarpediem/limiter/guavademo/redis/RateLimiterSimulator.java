@@ -0,0 +1,121 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.remcarpediem.limiter.guavademo.redis.RateLimiter.SleepingStopwatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 离散事件模拟器, 使用模拟时钟和进程内的 {@link FakeRedisPermitsStore} 回放请求轨迹,
+ * 不需要真实等待就可以离线评估限流器(比如 SmoothWarmingUp 的预热参数)的效果.
+ *
+ * <p>每个请求到达时把时钟推进到到达时间再预定令牌, 等待时间只记录不推进时钟,
+ * 和多个调用方并发等待的效果一致.
+ */
+public class RateLimiterSimulator {
+
+    private static final String KEY = "simulation";
+
+    interface LimiterFactory {
+        RateLimiter create(SleepingStopwatch stopwatch, PermitsStore permitsStore);
+    }
+
+    static LimiterFactory bursty(double permitsPerSecond) {
+        return (stopwatch, permitsStore) ->
+                RateLimiter.create(permitsPerSecond, stopwatch, KEY, permitsStore, new ReentrantLock());
+    }
+
+    static LimiterFactory warmingUp(double permitsPerSecond, long warmupPeriod, TimeUnit unit, double coldFactor) {
+        return (stopwatch, permitsStore) ->
+                RateLimiter.create(permitsPerSecond, warmupPeriod, unit, coldFactor, stopwatch, KEY, permitsStore, new ReentrantLock());
+    }
+
+    private final LimiterFactory limiterFactory;
+
+    RateLimiterSimulator(LimiterFactory limiterFactory) {
+        this.limiterFactory = limiterFactory;
+    }
+
+    /**
+     * 按 acquire 的语义回放, 所有请求都会被放行
+     */
+    public SimulationReport run(List<SimulatedRequest> trace) {
+        return run(trace, -1L);
+    }
+
+    /**
+     * 按 tryAcquire 的语义回放, 超时时间内拿不到令牌的请求被拒绝
+     */
+    public SimulationReport run(List<SimulatedRequest> trace, long timeout, TimeUnit unit) {
+        return run(trace, Math.max(unit.toMicros(timeout), 0));
+    }
+
+    private SimulationReport run(List<SimulatedRequest> trace, long timeoutMicros) {
+        List<SimulatedRequest> requests = new ArrayList<>(trace);
+        requests.sort(Comparator.comparingLong(SimulatedRequest::getArrivalMicros));
+
+        FakeSleepingStopwatch stopwatch = new FakeSleepingStopwatch();
+        RateLimiter rateLimiter = limiterFactory.create(stopwatch, new FakeRedisPermitsStore(stopwatch.ticker()));
+        long startMicros = stopwatch.readMicros();
+
+        long[] waits = new long[requests.size()];
+        long[] grants = new long[requests.size()];
+        int[] grantedPermits = new int[requests.size()];
+        int admitted = 0;
+        long admittedPermits = 0;
+        long lastGrantMicros = 0;
+        for (SimulatedRequest request : requests) {
+            long arrivalMicros = startMicros + request.getArrivalMicros();
+            stopwatch.advanceTo(arrivalMicros);
+            long waitMicros = timeoutMicros < 0
+                    ? rateLimiter.reserve(request.getPermits())
+                    : rateLimiter.tryReserve(request.getPermits(), timeoutMicros);
+            if (waitMicros < 0) {
+                continue;
+            }
+            waits[admitted] = waitMicros;
+            grants[admitted] = arrivalMicros + waitMicros - startMicros;
+            grantedPermits[admitted] = request.getPermits();
+            admitted++;
+            admittedPermits += request.getPermits();
+            lastGrantMicros = Math.max(lastGrantMicros, arrivalMicros + waitMicros - startMicros);
+        }
+
+        long firstArrivalMicros = requests.isEmpty() ? 0L : requests.get(0).getArrivalMicros();
+        long spanMicros = lastGrantMicros - firstArrivalMicros;
+        double admittedRate = spanMicros <= 0 ? admittedPermits : admittedPermits * 1e6 / spanMicros;
+
+        long[] sortedWaits = Arrays.copyOf(waits, admitted);
+        Arrays.sort(sortedWaits);
+        return new SimulationReport(requests.size(), requests.size() - admitted, admittedPermits, admittedRate,
+                sortedWaits, maxPermitsPerSecond(grants, grantedPermits, admitted));
+    }
+
+    /**
+     * 滑动一秒的窗口, 统计窗口内最多放行的令牌数
+     */
+    private static long maxPermitsPerSecond(long[] grants, int[] grantedPermits, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> grants[i]));
+        long windowMicros = TimeUnit.SECONDS.toMicros(1);
+        long max = 0;
+        long inWindow = 0;
+        int head = 0;
+        for (int tail = 0; tail < count; tail++) {
+            inWindow += grantedPermits[order[tail]];
+            while (grants[order[tail]] - grants[order[head]] >= windowMicros) {
+                inWindow -= grantedPermits[order[head]];
+                head++;
+            }
+            max = Math.max(max, inWindow);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,56 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterSimulatorTest {
+
+    @Test
+    public void testSimulateBursty() {
+        SimulationReport report = new RateLimiterSimulator(RateLimiterSimulator.bursty(5.0)).run(burst(50));
+        assertEquals(50, report.getAdmitted());
+        assertEquals(5.0, report.getAdmittedRate(), 0.2);
+        assertEquals(5, report.getMaxPermitsPerSecond());
+        assertEquals(TimeUnit.SECONDS.toMicros(49) / 5, report.getMaxWaitMicros());
+    }
+
+    @Test
+    public void testSimulateTryAcquire() {
+        SimulationReport report = new RateLimiterSimulator(RateLimiterSimulator.bursty(5.0))
+                .run(burst(50), 1, TimeUnit.SECONDS);
+        assertEquals(6, report.getAdmitted());
+        assertEquals(44, report.getRejected());
+    }
+
+    @Test
+    public void testSimulateWarmingUp() {
+        SimulationReport cold = new RateLimiterSimulator(
+                RateLimiterSimulator.warmingUp(10.0, 2, TimeUnit.SECONDS, 3.0)).run(burst(40));
+        SimulationReport bursty = new RateLimiterSimulator(RateLimiterSimulator.bursty(10.0)).run(burst(40));
+        assertTrue(cold.getMaxWaitMicros() > bursty.getMaxWaitMicros());
+        assertTrue(cold.getAdmittedRate() < bursty.getAdmittedRate());
+    }
+
+    @Test
+    public void testParseTrace() {
+        List<SimulatedRequest> trace = SimulatedRequest.parse(Arrays.asList("# arrival permits", "0 1", "", "1000,3"));
+        assertEquals(2, trace.size());
+        assertEquals(1000L, trace.get(1).getArrivalMicros());
+        assertEquals(3, trace.get(1).getPermits());
+    }
+
+    private static List<SimulatedRequest> burst(int count) {
+        List<SimulatedRequest> trace = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            trace.add(new SimulatedRequest(0L, 1));
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,133 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+    private final LimiterFixture fixture = new LimiterFixture();
+
+    @Test
+    public void testSimple() {
+        RateLimiter limiter = fixture.local(5.0);
+        limiter.acquire();
+        limiter.acquire();
+        limiter.acquire();
+        assertEquals(Arrays.asList(0L, 200000L, 200000L), fixture.sleeps());
+    }
+
+    @Test
+    public void testTryAcquire() {
+        RateLimiter limiter = fixture.local(5.0);
+        assertTrue(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+        assertFalse(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+        fixture.advance(200, TimeUnit.MILLISECONDS);
+        assertTrue(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void testTryAcquireUpTo() {
+        RateLimiter limiter = fixture.shared(5.0, "key");
+        assertEquals(1, limiter.tryAcquireUpTo(10));
+        assertEquals(0, limiter.tryAcquireUpTo(10));
+        fixture.advance(1200, TimeUnit.MILLISECONDS);
+        assertEquals(5, limiter.tryAcquireUpTo(10));
+        fixture.advance(400, TimeUnit.MILLISECONDS);
+        assertEquals(2, limiter.tryAcquireUpTo(3));
+        assertEquals(1, limiter.tryAcquireUpTo(3));
+        assertEquals(0, limiter.tryAcquireUpTo(3));
+    }
+
+    @Test
+    public void testSettleEstimatedCost() {
+        RateLimiter limiter = fixture.local(5.0);
+        Reservation overestimated = limiter.acquireEstimated(5);
+        overestimated.settle(1);
+        limiter.acquire();
+        Reservation underestimated = limiter.acquireEstimated(1);
+        underestimated.settle(3);
+        limiter.acquire();
+        assertEquals(Arrays.asList(0L, 200000L, 200000L, 600000L), fixture.sleeps());
+    }
+
+    @Test
+    public void testWarmingUpRefundKeepsLimiterWarm() {
+        RateLimiter limiter = fixture.warmingUp(10.0, "key", fixture.store);
+        for (int i = 0; i < 40; i++) {
+            limiter.reserve(1);
+        }
+        fixture.stopwatch.advanceTo(limiter.currentPermits().getNextFreeTicketMicros());
+        Reservation overestimated = limiter.acquireEstimated(5);
+        fixture.advance(400, TimeUnit.MILLISECONDS);
+        overestimated.settle(1);
+        // 只抵消还没到期的 100ms, 剩下的 3 个不放回存储, 限流器仍然按稳定速率发放
+        assertEquals(0.0, limiter.currentPermits().getStoredPermits(), 1e-6);
+        assertEquals(0L, limiter.reserve(1));
+        assertEquals(100000L, limiter.reserve(1));
+    }
+
+    @Test
+    public void testRejectExhaustedKeyLocally() {
+        AtomicInteger reads = new AtomicInteger();
+        PermitsStore store = new FakeRedisPermitsStore(fixture.ticker) {
+            @Override
+            public RedisPermits get(String key) {
+                reads.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        RateLimiter limiter = fixture.shared(1.0, "key", store);
+        assertTrue(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+        assertFalse(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+        int readsBeforeFlood = reads.get();
+        for (int i = 0; i < 100; i++) {
+            assertFalse(limiter.tryAcquire(1, 500, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(readsBeforeFlood, reads.get());
+
+        fixture.advance(1, TimeUnit.SECONDS);
+        assertTrue(limiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void testOptimisticConcurrency() throws Exception {
+        RateLimiter node1 = fixture.shared(1000.0, "key");
+        RateLimiter node2 = fixture.shared(1000.0, "key");
+
+        int threads = 8;
+        int reservesPerThread = 100;
+        Set<Long> waits = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            RateLimiter limiter = i % 2 == 0 ? node1 : node2;
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < reservesPerThread; j++) {
+                    waits.add(limiter.reserve(1));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(threads * reservesPerThread, waits.size());
+        assertEquals((threads * reservesPerThread - 1) * 1000L, (long) Collections.max(waits));
+        assertEquals(1000.0, node1.getRate(), 0.0);
+    }
+}
@@ -0,0 +1,76 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegionalRateLimiterTest {
+
+    @Test
+    public void testRebalanceRegionalShares() {
+        FakeTicker ticker = new FakeTicker();
+        DemandExchange exchange = new InMemoryDemandExchange();
+        String[] names = {"us", "eu", "ap"};
+        int[] attemptEverySteps = {1, 5, 50};
+        List<RegionalRateLimiter> regions = new ArrayList<>();
+        for (String name : names) {
+            // 每个区域有自己的令牌桶存储
+            RateLimiter limiter = new LimiterFixture(ticker).shared(30.0, "global");
+            regions.add(new RegionalRateLimiter(name, limiter, exchange, 90.0, 0.1, 1, TimeUnit.SECONDS, ticker));
+        }
+
+        int admitted = 0;
+        for (int step = 1; step <= 1000; step++) {
+            ticker.advance(10, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < regions.size(); i++) {
+                if (step % attemptEverySteps[i] == 0 && regions.get(i).tryAcquire(1, 0, TimeUnit.MICROSECONDS)) {
+                    admitted++;
+                }
+            }
+            if (step % 100 == 0) {
+                for (RegionalRateLimiter region : regions) {
+                    region.rebalance();
+                    // 任意区域调整之后合计都不超过全局速率
+                    double total = regions.stream().mapToDouble(RegionalRateLimiter::getShare).sum();
+                    assertTrue("total share " + total, total <= 90.0 + 1e-6);
+                }
+            }
+        }
+        assertTrue(admitted <= 90 * 11);
+        assertEquals(67.0, regions.get(0).getShare(), 0.5);
+        assertEquals(20.0, regions.get(1).getShare(), 0.5);
+        assertEquals(3.0, regions.get(2).getShare(), 0.5);
+    }
+
+    @Test
+    public void testHoldFloorShareAfterSkippedAllocations() {
+        FakeTicker ticker = new FakeTicker();
+        DemandExchange exchange = new InMemoryDemandExchange();
+        RegionalRateLimiter first = new RegionalRateLimiter("first", new LimiterFixture(ticker).shared(45.0, "global"),
+                exchange, 90.0, 0.2, 1, TimeUnit.SECONDS, ticker);
+        RegionalRateLimiter late = new RegionalRateLimiter("late", new LimiterFixture(ticker).shared(45.0, "global"),
+                exchange, 90.0, 0.2, 1, TimeUnit.SECONDS, ticker);
+        ticker.advance(1, TimeUnit.SECONDS);
+        first.rebalance();
+        late.rebalance();
+        assertEquals(45.0, late.getShare(), 1e-6);
+
+        for (int i = 0; i < 3; i++) {
+            ticker.advance(1, TimeUnit.SECONDS);
+            first.rebalance();
+        }
+        ticker.advance(1, TimeUnit.SECONDS);
+        late.rebalance();
+        // 错过了中间的分配, 这一周期只用保底份额 90 * 0.2 / 2
+        assertEquals(9.0, late.getShare(), 1e-6);
+
+        ticker.advance(1, TimeUnit.SECONDS);
+        late.rebalance();
+        assertEquals(45.0, late.getShare(), 1e-6);
+    }
+}
@@ -0,0 +1,167 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReservationCoalescerTest {
+    private final LimiterFixture fixture = new LimiterFixture();
+
+    @Test
+    public void testCoalesceConcurrentReservations() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        PermitsStore store = new FakeRedisPermitsStore(fixture.ticker) {
+            @Override
+            public boolean compareAndSet(String key, long expectedVersion, RedisPermits permits, long expiresSeconds) {
+                writes.incrementAndGet();
+                Uninterruptibles.sleepUninterruptibly(1, TimeUnit.MILLISECONDS);
+                return super.compareAndSet(key, expectedVersion, permits, expiresSeconds);
+            }
+        };
+        RateLimiter limiter = fixture.shared(1000.0, "key", store);
+        limiter.setCoalescing(true);
+        int writesBefore = writes.get();
+
+        int threads = 16;
+        int reservesPerThread = 20;
+        Set<Long> waits = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < reservesPerThread; j++) {
+                    waits.add(limiter.reserve(1));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(threads * reservesPerThread, waits.size());
+        assertEquals((threads * reservesPerThread - 1) * 1000L, (long) Collections.max(waits));
+        assertTrue(writes.get() - writesBefore < threads * reservesPerThread / 2);
+    }
+
+    @Test
+    public void testInterruptedCallerParksAndKeepsInterrupt() throws Exception {
+        BlockingStore store = new BlockingStore();
+        RateLimiter limiter = fixture.shared(1000.0, "key", store);
+        limiter.setCoalescing(true);
+        store.blocking = true;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Long> first = executor.submit(() -> limiter.reserve(1));
+            assertTrue(store.entered.await(5, TimeUnit.SECONDS));
+
+            AtomicReference<Thread> caller = new AtomicReference<>();
+            Future<Boolean> interrupted = executor.submit(() -> {
+                caller.set(Thread.currentThread());
+                Thread.currentThread().interrupt();
+                limiter.reserve(1);
+                return Thread.currentThread().isInterrupted();
+            });
+            // 中断的调用方也要 park 等待合并线程唤醒, 不能空转
+            awaitState(caller, Thread.State.WAITING);
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Thread.State.WAITING, caller.get().getState());
+                Thread.sleep(1);
+            }
+            store.release.countDown();
+
+            assertEquals(0L, (long) first.get(5, TimeUnit.SECONDS));
+            assertTrue(interrupted.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testErrorReleasesWholeBatch() throws Exception {
+        BlockingStore store = new BlockingStore();
+        RateLimiter limiter = fixture.shared(1000.0, "key", store);
+        limiter.setCoalescing(true);
+        store.blocking = true;
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<Long> first = executor.submit(() -> limiter.reserve(1));
+            assertTrue(store.entered.await(5, TimeUnit.SECONDS));
+            // 第一次写入期间到达的两个请求在下一次合并中一起预定, 这次写入抛出 Error
+            store.error = true;
+            List<Future<Long>> batch = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                AtomicReference<Thread> caller = new AtomicReference<>();
+                batch.add(executor.submit(() -> {
+                    caller.set(Thread.currentThread());
+                    return limiter.reserve(1);
+                }));
+                awaitState(caller, Thread.State.WAITING);
+            }
+            store.release.countDown();
+
+            assertEquals(0L, (long) first.get(5, TimeUnit.SECONDS));
+            for (Future<Long> future : batch) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    fail("expected error");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof AssertionError);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitState(AtomicReference<Thread> thread, Thread.State state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (thread.get() == null || thread.get().getState() != state) {
+            assertTrue("thread not " + state, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * 第一次写入时阻塞到 release, 之后按 error 抛出 Error
+     */
+    private class BlockingStore extends FakeRedisPermitsStore {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean blocking;
+        volatile boolean error;
+
+        BlockingStore() {
+            super(fixture.ticker);
+        }
+
+        @Override
+        public boolean compareAndSet(String key, long expectedVersion, RedisPermits permits, long expiresSeconds) {
+            if (blocking) {
+                blocking = false;
+                entered.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+            } else if (error) {
+                throw new AssertionError("store failed");
+            }
+            return super.compareAndSet(key, expectedVersion, permits, expiresSeconds);
+        }
+    }
+}
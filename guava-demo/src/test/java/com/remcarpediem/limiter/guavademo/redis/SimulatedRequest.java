@@ -0,0 +1,48 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * 请求轨迹中的一条请求, arrivalMicros 为相对轨迹开始的到达时间
+ */
+public class SimulatedRequest {
+    private final long arrivalMicros;
+    private final int permits;
+
+    public SimulatedRequest(long arrivalMicros, int permits) {
+        checkArgument(arrivalMicros >= 0, "arrivalMicros must not be negative: %s", arrivalMicros);
+        checkArgument(permits > 0, "Requested permits (%s) must be positive", permits);
+        this.arrivalMicros = arrivalMicros;
+        this.permits = permits;
+    }
+
+    /**
+     * 解析录制的请求轨迹, 每行格式为 "到达时间(微秒) 令牌数", 空行和 # 开头的行会被忽略
+     * @param lines
+     * @return
+     */
+    public static List<SimulatedRequest> parse(List<String> lines) {
+        List<SimulatedRequest> trace = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String[] fields = trimmed.split("[\\s,]+");
+            checkArgument(fields.length == 2, "malformed trace line: %s", line);
+            trace.add(new SimulatedRequest(Long.parseLong(fields[0]), Integer.parseInt(fields[1])));
+        }
+        return trace;
+    }
+
+    public long getArrivalMicros() {
+        return arrivalMicros;
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+}
@@ -0,0 +1,88 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次模拟的结果: 放行速率, 等待时间分布和突发情况
+ */
+public class SimulationReport {
+    private final int requests;
+    private final int rejected;
+    private final long admittedPermits;
+    private final double admittedRate;
+    private final long[] sortedWaitMicros;
+    private final long maxPermitsPerSecond;
+
+    SimulationReport(int requests, int rejected, long admittedPermits, double admittedRate,
+                     long[] sortedWaitMicros, long maxPermitsPerSecond) {
+        this.requests = requests;
+        this.rejected = rejected;
+        this.admittedPermits = admittedPermits;
+        this.admittedRate = admittedRate;
+        this.sortedWaitMicros = sortedWaitMicros;
+        this.maxPermitsPerSecond = maxPermitsPerSecond;
+    }
+
+    public int getRequests() {
+        return requests;
+    }
+
+    public int getAdmitted() {
+        return requests - rejected;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    public long getAdmittedPermits() {
+        return admittedPermits;
+    }
+
+    /**
+     * 从第一个请求到达到最后一个请求放行期间, 平均每秒放行的令牌数
+     */
+    public double getAdmittedRate() {
+        return admittedRate;
+    }
+
+    /**
+     * 放行请求的等待时间分位数
+     * @param percentile 0 到 100
+     * @return 等待时间, 单位微秒
+     */
+    public long waitMicrosAt(double percentile) {
+        if (sortedWaitMicros.length == 0) {
+            return 0L;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedWaitMicros.length) - 1;
+        return sortedWaitMicros[Math.min(Math.max(index, 0), sortedWaitMicros.length - 1)];
+    }
+
+    public long getMaxWaitMicros() {
+        return sortedWaitMicros.length == 0 ? 0L : sortedWaitMicros[sortedWaitMicros.length - 1];
+    }
+
+    /**
+     * 任意一秒的滑动窗口内最多放行的令牌数, 用来观察突发
+     */
+    public long getMaxPermitsPerSecond() {
+        return maxPermitsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulationReport{requests=" + requests
+                + ", admitted=" + getAdmitted()
+                + ", rejected=" + rejected
+                + ", admittedRate=" + String.format("%.3f", admittedRate)
+                + ", waitMillis(p50/p90/p99/max)=" + Arrays.toString(new long[]{
+                        TimeUnit.MICROSECONDS.toMillis(waitMicrosAt(50)),
+                        TimeUnit.MICROSECONDS.toMillis(waitMicrosAt(90)),
+                        TimeUnit.MICROSECONDS.toMillis(waitMicrosAt(99)),
+                        TimeUnit.MICROSECONDS.toMillis(getMaxWaitMicros())})
+                + ", maxPermitsPerSecond=" + maxPermitsPerSecond
+                + "}";
+    }
+}
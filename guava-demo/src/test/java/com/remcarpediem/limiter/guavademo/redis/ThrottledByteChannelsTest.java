@@ -0,0 +1,122 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThrottledByteChannelsTest {
+
+    @Test
+    public void testReadableChannel() throws IOException {
+        LimiterFixture fixture = new LimiterFixture();
+        RateLimiter rateLimiter = fixture.local(100.0);
+        int total = 0;
+        try (ReadableByteChannel channel = ThrottledByteChannels.readable(
+                Channels.newChannel(new ByteArrayInputStream(new byte[25])), rateLimiter)) {
+            ByteBuffer dst = ByteBuffer.allocate(64);
+            int n;
+            while ((n = channel.read(dst)) >= 0) {
+                // 每次最多读 100ms 的字节数
+                assertTrue(n <= 10);
+                total += n;
+            }
+            assertEquals(25, dst.position());
+        }
+        assertEquals(25, total);
+        // 关闭时退回没用完的 5 个字节
+        rateLimiter.acquire(1);
+        assertEquals(Arrays.asList(0L, 100000L, 100000L, 50000L), fixture.sleeps());
+    }
+
+    @Test
+    public void testWritableChannel() throws IOException {
+        LimiterFixture fixture = new LimiterFixture();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = ThrottledByteChannels.writable(Channels.newChannel(sink), fixture.local(100.0))) {
+            ByteBuffer src = ByteBuffer.wrap(new byte[30]);
+            while (src.hasRemaining()) {
+                assertTrue(channel.write(src) <= 10);
+            }
+        }
+        assertEquals(30, sink.size());
+        assertEquals(Arrays.asList(0L, 100000L, 100000L), fixture.sleeps());
+    }
+
+    @Test
+    public void testTransferToWithPartialWrites() throws IOException {
+        byte[] content = new byte[30];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path path = Files.createTempFile("throttled", ".bin");
+        try {
+            Files.write(path, content);
+            try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ)) {
+                // 每次最多写入 4 个字节, 分段调用时按实际写入的字节数继续
+                LimiterFixture fixture = new LimiterFixture();
+                PartialChannel target = new PartialChannel(4, Integer.MAX_VALUE);
+                assertEquals(30L, ThrottledByteChannels.transferTo(source, 0, 30, target, fixture.local(100.0)));
+                assertArrayEquals(content, target.written.toByteArray());
+                assertEquals(Arrays.asList(0L, 100000L, 100000L), fixture.sleeps());
+
+                // 写满 12 个字节后不再接受, 只发送了一部分, 没用完的令牌退回
+                LimiterFixture full = new LimiterFixture();
+                RateLimiter rateLimiter = full.local(100.0);
+                PartialChannel blocked = new PartialChannel(4, 12);
+                assertEquals(12L, ThrottledByteChannels.transferTo(source, 0, 30, blocked, rateLimiter));
+                assertArrayEquals(Arrays.copyOf(content, 12), blocked.written.toByteArray());
+                rateLimiter.acquire(1);
+                assertEquals(Arrays.asList(0L, 100000L, 20000L), full.sleeps());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * 每次最多写入 maxWrite 个字节, 一共写入 capacity 个字节后像写满的非阻塞 channel 一样返回 0
+     */
+    private static final class PartialChannel implements WritableByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final int maxWrite;
+        private final int capacity;
+
+        PartialChannel(int maxWrite, int capacity) {
+            this.maxWrite = maxWrite;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = Math.min(Math.min(src.remaining(), maxWrite), capacity - written.size());
+            for (int i = 0; i < n; i++) {
+                written.write(src.get());
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThrottledStreamsTest {
+
+    @Test
+    public void testThrottledStreams() throws Exception {
+        LimiterFixture write = new LimiterFixture();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (OutputStream out = new ThrottledOutputStream(sink, write.local(100.0))) {
+            out.write(new byte[30]);
+        }
+        assertEquals(30, sink.size());
+        assertEquals(Arrays.asList(0L, 100000L, 100000L), write.sleeps());
+
+        LimiterFixture read = new LimiterFixture();
+        RateLimiter readLimiter = read.local(100.0);
+        try (InputStream in = new ThrottledInputStream(new ByteArrayInputStream(new byte[25]), readLimiter)) {
+            while (in.read() >= 0) {
+            }
+        }
+        // 关闭时退回没用完的 5 个字节
+        readLimiter.acquire(1);
+        assertEquals(Arrays.asList(0L, 100000L, 100000L, 50000L), read.sleeps());
+    }
+}
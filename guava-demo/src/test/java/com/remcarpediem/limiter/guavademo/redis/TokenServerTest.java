@@ -0,0 +1,183 @@
+package com.remcarpediem.limiter.guavademo.redis;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenServerTest {
+
+    @Test
+    public void testTokenServerBatchesDecisions() throws Exception {
+        // 服务端时间不前进, 每个 key 只能拿到一个令牌
+        TokenServer server = new TokenServer(new InetSocketAddress("127.0.0.1", 0), 1.0, new FakeSleepingStopwatch());
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getPort());
+        TokenClient client = new TokenClient(address, TokenClient.FallbackPolicy.DENY, 1.0, 1, TimeUnit.SECONDS);
+        client.start();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                results.add(executor.submit(() -> client.tryAcquire("shared", 1, 0, TimeUnit.MICROSECONDS)));
+            }
+            int granted = 0;
+            for (Future<Boolean> result : results) {
+                granted += result.get() ? 1 : 0;
+            }
+            assertEquals(1, granted);
+            assertTrue(client.tryAcquire("other", 1, 0, TimeUnit.MICROSECONDS));
+            assertEquals(0L, client.decide("acquire", 1, TokenProtocol.ACQUIRE));
+            assertEquals(1000000L, client.decide("acquire", 1, TokenProtocol.ACQUIRE));
+
+            // 服务端下线后按本地策略判断, fresh 没有请求过, 服务端在线时一定能拿到
+            server.stop();
+            assertFalse(client.tryAcquire("fresh", 1, 0, TimeUnit.MICROSECONDS));
+        } finally {
+            executor.shutdownNow();
+            client.stop();
+            server.stop();
+        }
+
+        TokenClient local = new TokenClient(address, TokenClient.FallbackPolicy.LOCAL, 1.0, 1, TimeUnit.SECONDS,
+                new FakeSleepingStopwatch());
+        local.start();
+        try {
+            assertTrue(local.tryAcquire("shared", 1, 0, TimeUnit.MICROSECONDS));
+            assertFalse(local.tryAcquire("shared", 1, 0, TimeUnit.MICROSECONDS));
+        } finally {
+            local.stop();
+        }
+    }
+
+    @Test
+    public void testRateLimiterRoutedThroughTokenServer() throws Exception {
+        TokenServer server = new TokenServer(new InetSocketAddress("127.0.0.1", 0), 1.0, new FakeSleepingStopwatch());
+        server.start();
+        TokenClient client = new TokenClient(new InetSocketAddress("127.0.0.1", server.getPort()),
+                TokenClient.FallbackPolicy.DENY, 1.0, 1, TimeUnit.SECONDS);
+        client.start();
+        try {
+            // 两个节点各自的本地令牌桶都很宽松, 设置令牌服务后共用服务端的令牌桶
+            LimiterFixture fixture = new LimiterFixture();
+            RateLimiter first = fixture.shared(100.0, "routed", new FakeRedisPermitsStore(fixture.ticker));
+            RateLimiter second = fixture.shared(100.0, "routed", new FakeRedisPermitsStore(fixture.ticker));
+            first.setTokenClient(client);
+            second.setTokenClient(client);
+            assertTrue(first.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+            assertFalse(second.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+            assertEquals(1000000.0, second.acquire(1), 0.0);
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testUpToAndSettleRoutedThroughTokenServer() throws Exception {
+        TokenServer server = new TokenServer(new InetSocketAddress("127.0.0.1", 0), 1.0, new FakeSleepingStopwatch());
+        server.start();
+        TokenClient client = new TokenClient(new InetSocketAddress("127.0.0.1", server.getPort()),
+                TokenClient.FallbackPolicy.DENY, 1.0, 1, TimeUnit.SECONDS);
+        client.start();
+        try {
+            LimiterFixture fixture = new LimiterFixture();
+            FakeRedisPermitsStore store = new FakeRedisPermitsStore(fixture.ticker);
+            RateLimiter rateLimiter = fixture.shared(100.0, "routed", store);
+            rateLimiter.setTokenClient(client);
+            long localNextFreeTicketMicros = store.get("routed").getNextFreeTicketMicros();
+            // 服务端时间不前进, 速率 1 时只能拿到 1 个
+            assertEquals(1, rateLimiter.tryAcquireUpTo(3));
+            assertEquals(0, rateLimiter.tryAcquireUpTo(3));
+            // 退回的令牌回到服务端的令牌桶
+            rateLimiter.settle(-1);
+            assertTrue(rateLimiter.tryAcquire(1, 0, TimeUnit.MICROSECONDS));
+            // 本地令牌桶没有被读写
+            assertEquals(localNextFreeTicketMicros, store.get("routed").getNextFreeTicketMicros());
+        } finally {
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testTimedOutDecisionIsRefunded() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serverSocket.setSoTimeout(5000);
+            TokenClient client = new TokenClient(new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()),
+                    TokenClient.FallbackPolicy.DENY, 1.0, 50, TimeUnit.MILLISECONDS);
+            client.start();
+            try {
+                Future<Long> result = executor.submit(() -> client.decide("slow", 2, TokenProtocol.ACQUIRE));
+                try (Socket socket = serverSocket.accept()) {
+                    socket.setSoTimeout(5000);
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    ByteBuffer request = readFrame(in);
+                    long batchId = request.getLong();
+                    assertEquals(1, request.getInt());
+                    assertEquals("slow", TokenProtocol.decodeDecision(request).key);
+                    // 超时后按 DENY 拒绝
+                    assertEquals(-1L, (long) result.get());
+
+                    // 服务端已经扣了令牌, 结果晚到时客户端发送结算请求退回
+                    ByteBuffer response = ByteBuffer.allocate(TokenProtocol.responseLength(1));
+                    TokenProtocol.encodeResponse(response, batchId, new long[]{0L});
+                    socket.getOutputStream().write(response.array());
+                    ByteBuffer refund = readFrame(in);
+                    refund.getLong();
+                    assertEquals(1, refund.getInt());
+                    TokenProtocol.Decision decision = TokenProtocol.decodeDecision(refund);
+                    assertEquals("slow", decision.key);
+                    assertEquals(-2, decision.permits);
+                    assertEquals(TokenProtocol.SETTLE, decision.timeoutMicros);
+                }
+            } finally {
+                client.stop();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    @Test
+    public void testSplitRequestsByFrameSize() {
+        String longKey = String.join("", Collections.nCopies(TokenProtocol.MAX_KEY_BYTES, "k"));
+        List<TokenProtocol.Decision> decisions = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            decisions.add(new TokenProtocol.Decision(longKey, 1, 0L));
+        }
+        List<List<TokenProtocol.Decision>> batches = TokenProtocol.splitRequests(decisions);
+        // 每个请求 32781 字节, 一帧最多 31 个
+        assertEquals(3, batches.size());
+        int total = 0;
+        for (List<TokenProtocol.Decision> batch : batches) {
+            ByteBuffer frame = TokenProtocol.encodeRequest(0L, batch);
+            assertTrue(frame.getInt(0) <= TokenProtocol.MAX_FRAME_BYTES);
+            total += batch.size();
+        }
+        assertEquals(64, total);
+    }
+}